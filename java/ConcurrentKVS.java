@@ -0,0 +1,445 @@
+package slite.lib.java;
+
+import java.io.OutputStream;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A KVS that can be shared between threads without any external locking, for
+ * example for configuration or state that is read often and changed now and then.
+ * <p>
+ * The structure is kept as an immutable tree of KVS nodes behind a single
+ * reference. Readers never block and never retry: every read, including
+ * toString() and toStream(), works on the tree as it was when the read started,
+ * so an encoded snapshot is always consistent even while writes are happening.
+ * </p>
+ * <p>
+ * A write copies only the structures on its key path, sharing every other
+ * sub-structure with the previous tree, and then publishes the new tree with a
+ * compare-and-set. Writers never lock each other out. A writer that loses the
+ * race to another write redoes its copy on the newer tree, so only writes that
+ * happen at exactly the same moment cost anything extra.
+ * </p>
+ * Insertion order is kept exactly like it is in a KVS.
+ */
+public class ConcurrentKVS
+{
+	private static final int SET = 0;
+	private static final int SET_DEFAULT = 1;
+	private static final int REMOVE = 2;
+
+	private final AtomicReference<KVS> root;
+	private final AtomicInteger autoKey;
+
+	/**
+	 * Construct an empty structure
+	 */
+	public ConcurrentKVS()
+	{
+		this.root = new AtomicReference<>(new KVS());
+		this.autoKey = new AtomicInteger();
+	}
+
+	/**
+	 * Construct a structure holding a copy of the given KVS. Changes made to the
+	 * given KVS afterwards are not seen by this one.
+	 * @param kvs
+	 */
+	public ConcurrentKVS(KVS kvs)
+	{
+		KVS copy = kvs.copy(true);
+		this.root = new AtomicReference<>(copy);
+		this.autoKey = new AtomicInteger(copy.autoKey);
+	}
+
+	/**
+	 * Construct a structure and fill it with the decoded data contained in text
+	 * @param text
+	 */
+	public ConcurrentKVS(String text)
+	{
+		this(new KVS(text));
+	}
+
+	/**
+	 * The same as KVS.get(String... keys)
+	 * @param keys The key path
+	 * @return A string version of the value that the key path is referencing.
+	 */
+	public String get(String... keys)
+	{
+		return this.root.get().get(keys);
+	}
+
+	/**
+	 * The same as KVS.get(KVSPath path)
+	 * @param path The key path
+	 * @return A string version of the value that the key path is referencing.
+	 */
+	public String get(KVSPath path)
+	{
+		return this.root.get().get(path);
+	}
+
+	/**
+	 * The same as KVS.getString(String defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public String getString(String defaultValue, String... keys)
+	{
+		return this.root.get().getString(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getLong(long defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public long getLong(long defaultValue, String... keys)
+	{
+		return this.root.get().getLong(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getLong(long defaultValue, KVSPath path)
+	 * @param defaultValue
+	 * @param path
+	 * @return
+	 */
+	public long getLong(long defaultValue, KVSPath path)
+	{
+		return this.root.get().getLong(defaultValue, path);
+	}
+
+	/**
+	 * The same as KVS.getInt(int defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public int getInt(int defaultValue, String... keys)
+	{
+		return this.root.get().getInt(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getInt(int defaultValue, KVSPath path)
+	 * @param defaultValue
+	 * @param path
+	 * @return
+	 */
+	public int getInt(int defaultValue, KVSPath path)
+	{
+		return this.root.get().getInt(defaultValue, path);
+	}
+
+	/**
+	 * The same as KVS.getDouble(double defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public double getDouble(double defaultValue, String... keys)
+	{
+		return this.root.get().getDouble(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getDouble(double defaultValue, KVSPath path)
+	 * @param defaultValue
+	 * @param path
+	 * @return
+	 */
+	public double getDouble(double defaultValue, KVSPath path)
+	{
+		return this.root.get().getDouble(defaultValue, path);
+	}
+
+	/**
+	 * The same as KVS.getNative(String... keyPath), except that a structure is
+	 * returned as a copy which can be changed freely.
+	 * @param keyPath
+	 * @return Object that can be NULL or a String or a KVS
+	 */
+	public Object getNative(String... keyPath)
+	{
+		Object value = this.root.get().getNative(keyPath);
+		return value instanceof KVS ? ((KVS) value).copy(true) : value;
+	}
+
+	/**
+	 * The same as getNative(String... keyPath)
+	 * @param path
+	 * @return Object that can be NULL or a String or a KVS
+	 */
+	public Object getNative(KVSPath path)
+	{
+		return this.getNative(path.keys);
+	}
+
+	/**
+	 * The same as KVS.exists(String... keyPath)
+	 * @param keyPath
+	 * @return
+	 */
+	public boolean exists(String... keyPath)
+	{
+		return this.root.get().exists(keyPath);
+	}
+
+	/**
+	 * The same as KVS.exists(KVSPath path)
+	 * @param path
+	 * @return
+	 */
+	public boolean exists(KVSPath path)
+	{
+		return this.root.get().exists(path);
+	}
+
+	/**
+	 * @return The number of entries on the first structure level
+	 */
+	public int size()
+	{
+		return this.root.get().size();
+	}
+
+	/**
+	 * @return true if there are no entries
+	 */
+	public boolean isEmpty()
+	{
+		return this.root.get().isEmpty();
+	}
+
+	/**
+	 * @return The keys of the first structure level as they are right now
+	 */
+	public String[] keys()
+	{
+		return this.root.get().keys();
+	}
+
+	/**
+	 * Copies the whole structure as it is right now. The copy can be changed
+	 * freely without affecting this structure.
+	 * @return
+	 */
+	public KVS snapshot()
+	{
+		KVS copy = this.root.get().copy(true);
+		copy.autoKey = this.autoKey.get(); // add() on the copy carries on where this structure is
+		return copy;
+	}
+
+	/**
+	 * Set a value referenced by the key path, the same as KVS.set(Object value, String... keys).
+	 * A KVS value is copied, so changing it afterwards has no effect on this structure.
+	 * @param value
+	 * @param keys The key path
+	 * @return The current structure. For chaining purposes.
+	 */
+	public ConcurrentKVS set(Object value, String... keys)
+	{
+		this.update(SET, value, keys);
+		return this;
+	}
+
+	/**
+	 * The same as set(Object value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current structure. For chaining purposes.
+	 */
+	public ConcurrentKVS set(Object value, KVSPath path)
+	{
+		this.update(SET, value, path.keys);
+		return this;
+	}
+
+	/**
+	 * The same as set(Object value, String... keys), but only if the key path
+	 * does not exist yet.
+	 * @param value
+	 * @param keys The key path
+	 * @return The current structure. For chaining purposes.
+	 */
+	public ConcurrentKVS setDefault(Object value, String... keys)
+	{
+		this.update(SET_DEFAULT, value, keys);
+		return this;
+	}
+
+	/**
+	 * The same as setDefault(Object value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current structure. For chaining purposes.
+	 */
+	public ConcurrentKVS setDefault(Object value, KVSPath path)
+	{
+		this.update(SET_DEFAULT, value, path.keys);
+		return this;
+	}
+
+	/**
+	 * Remove a key-value pair referenced by the key path
+	 * @param keys The key path
+	 */
+	public void remove(String... keys)
+	{
+		this.update(REMOVE, null, keys);
+	}
+
+	/**
+	 * The same as remove(String... keys)
+	 * @param path The key path
+	 */
+	public void remove(KVSPath path)
+	{
+		this.update(REMOVE, null, path.keys);
+	}
+
+	/**
+	 * Add a value using an auto incremented key. Every call gets its own key,
+	 * no matter how many threads are adding at the same time.
+	 * @param value
+	 * @return The current structure. For chaining purposes.
+	 */
+	public ConcurrentKVS add(Object value)
+	{
+		this.update(SET, value, Integer.toString(this.autoKey.getAndIncrement()));
+		return this;
+	}
+
+	/**
+	 * Merges the given KVS into this one, the same way KVS.merge(KVS kvs) does.
+	 * The whole merge becomes visible to readers at once.
+	 * @param kvs
+	 */
+	public void merge(KVS kvs)
+	{
+		KVS current;
+		KVS next;
+		do
+		{
+			current = this.root.get();
+			next = merge(current, kvs);
+		}
+		while(!this.root.compareAndSet(current, next));
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.root.get().toString();
+	}
+
+	/**
+	 * The same as KVS.toString(boolean pretty, String wrapKey)
+	 * @param pretty
+	 * @param wrapKey
+	 * @return
+	 */
+	public String toString(boolean pretty, String wrapKey)
+	{
+		return this.root.get().toString(pretty, wrapKey);
+	}
+
+	/**
+	 * The same as KVS.toStream(OutputStream out)
+	 * @param out
+	 * @throws Exception
+	 */
+	public void toStream(OutputStream out) throws Exception
+	{
+		this.root.get().toStream(out);
+	}
+
+	/**
+	 * The same as KVS.toStream(OutputStream out, boolean pretty, String wrapKey)
+	 * @param out
+	 * @param pretty
+	 * @param wrapKey
+	 * @throws Exception
+	 */
+	public void toStream(OutputStream out, boolean pretty, String wrapKey) throws Exception
+	{
+		this.root.get().toStream(out, pretty, wrapKey);
+	}
+
+	private void update(int operation, Object value, String... keys)
+	{
+		if(keys.length==0) return;
+		if(value instanceof KVS) value = ((KVS) value).copy(true); // nodes in the tree are never changed once published
+
+		KVS current;
+		KVS next;
+		do
+		{
+			current = this.root.get();
+			next = update(current, 0, operation, value, keys);
+			if(next==current) return; // nothing to change
+		}
+		while(!this.root.compareAndSet(current, next));
+	}
+
+	/**
+	 * Applies the operation below the node without changing it
+	 * @return A copy of the node with the change, or the node itself if nothing changes
+	 */
+	private static KVS update(KVS node, int index, int operation, Object value, String[] keys)
+	{
+		String key = keys[index];
+		Object current = node.map().get(key);
+		Object next;
+
+		if(index<keys.length-1) // use this up until the second last key
+		{
+			if(current instanceof KVS)
+				next = update((KVS) current, index + 1, operation, value, keys);
+			else if(operation==REMOVE)
+				return node;
+			else
+				next = update(new KVS(), index + 1, operation, value, keys);
+			if(next==current) return node;
+		}
+		else if(operation==REMOVE)
+		{
+			if(!node.map().containsKey(key)) return node;
+			KVS copy = node.copy(false);
+			copy.map().remove(key);
+			return copy;
+		}
+		else if(operation==SET_DEFAULT && node.map().containsKey(key))
+			return node;
+		else
+			next = value;
+
+		KVS copy = node.copy(false);
+		copy.map().put(key, next);
+		return copy;
+	}
+
+	private static KVS merge(KVS node, KVS kvs)
+	{
+		KVS copy = node.copy(false);
+		Object currentValue;
+		Object value;
+		for(Entry<String, Object> entry : kvs.entries())
+		{
+			currentValue = copy.map().get(entry.getKey());
+			value = entry.getValue();
+			if(value instanceof KVS && currentValue instanceof KVS)
+				copy.map().put(entry.getKey(), merge((KVS) currentValue, (KVS) value));
+			else
+				copy.map().put(entry.getKey(), value instanceof KVS ? ((KVS) value).copy(true) : value);
+		}
+		return copy;
+	}
+}
@@ -1,26 +1,42 @@
 package slite.lib.java;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.Map.Entry;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class KVS
 {
-	private LinkedHashMap<String, Object> map = new LinkedHashMap<>();
-	private int autoKey = 0;
+	private Map<String, Object> map = new LinkedHashMap<>();
+	int autoKey = 0; // the next key used by add()
+
+	// Set while this structure has been lazily decoded and its byte range has not been materialized yet
+	private KVSDecoder lazySource = null;
+	private int lazyStart = 0;
+	private int lazyEnd = 0;
+
+	// Kept for cacheEncoding(), see KVSEncoder.writeKept()
+	private boolean cacheEncoding = false;
+	KVS parent = null; // the structure holding this one, set when that is first written with the cache
+	volatile byte[] encoded = null; // the compact encoding of the pairs, null once anything has changed
 
 	/**
 	 * Construct a new KVS structure and fill it with the decoded data contained in text
@@ -41,7 +57,8 @@ public class KVS
 	 * 
 	 * This operation might block depending on the blocking mode set on the stream. 
 	 * 
-	 * This operation does not support non-blocking streams.
+	 * This operation does not support non-blocking streams. Use a KVSFeedDecoder
+	 * to decode from non-blocking channels.
 	 * 
 	 * @param stream The stream to read from
 	 * @param itemCount The number of items (key-value pairs) to read. if -1 it will
@@ -60,11 +77,22 @@ public class KVS
 
 	}
 
-	private KVS(KVSBufferIn buffer)
+	private KVS(KVSDecoder buffer)
 	{
 		this.fromBuffer(buffer, -1);
 	}
 
+	/**
+	 * Construct a structure around an existing map, such as an immutable one
+	 * @param map
+	 * @param autoKey The next key used by add()
+	 */
+	KVS(Map<String, Object> map, int autoKey)
+	{
+		this.map = map;
+		this.autoKey = autoKey;
+	}
+
 	/**
 	 * Decode an existing KVS string into this KVS structure.
 	 * Any existing data inside this KVS structure will be overwritten
@@ -72,15 +100,45 @@ public class KVS
 	 * @param text
 	 */
 	public void fromString(String text)
+	{
+		this.fromString(text, false);
+	}
+
+	/**
+	 * Decode an existing KVS string into this KVS structure.
+	 * Any existing data inside this KVS structure will be overwritten
+	 * if the keys match the incoming structure.
+	 * @param text
+	 * @param lazy If set to true only the byte ranges of sub-structures are recorded
+	 * while decoding. A sub-structure is then only decoded the first time it is
+	 * accessed. This is much cheaper when only a few paths of a large document are read.
+	 */
+	public void fromString(String text, boolean lazy)
+	{
+		this.fromString(text, lazy, null, null);
+	}
+
+	/**
+	 * Decode an existing KVS string into this KVS structure.
+	 * Any existing data inside this KVS structure will be overwritten
+	 * if the keys match the incoming structure.
+	 * @param text
+	 * @param lazy See fromString(String, boolean)
+	 * @param keys If not null then keys are looked up in this table by their bytes
+	 * so that repeated keys are only decoded once. The table can be reused for
+	 * multiple documents.
+	 * @param values If not null then values are looked up in this table the same
+	 * way as keys. Only worth it if the values repeat often.
+	 */
+	public void fromString(String text, boolean lazy, KVSKeyTable keys, KVSKeyTable values)
 	{
 		if(text!=null)
 		{
-			ByteArrayInputStream bais = new ByteArrayInputStream(text.getBytes());
-
-			KVSBufferIn buffer = new KVSBufferIn(bais);
+			KVSDecoder buffer = new KVSDecoder(text.getBytes(StandardCharsets.UTF_8));
+			buffer.lazy = lazy;
+			buffer.keys = keys;
+			buffer.values = values;
 			this.fromBuffer(buffer, -1);
-
-			try { bais.close(); } catch (IOException ex) {}
 		}
 	}
 	
@@ -93,6 +151,17 @@ public class KVS
 	{
 		this.fromFile(new File(file));
 	}
+
+	/**
+	 * Load KVS from file. This will merge over the existing KVS data.
+	 * @param file
+	 * @param mapped If set to true the file is memory mapped, see fromFile(File, boolean)
+	 * @throws Exception 
+	 */
+	public void fromFile(String file, boolean mapped) throws Exception
+	{
+		this.fromFile(new File(file), mapped);
+	}
 	
 	/**
 	 * Load KVS from file. This will merge over the existing KVS data.
@@ -101,11 +170,111 @@ public class KVS
 	 */
 	public void fromFile(File file) throws Exception
 	{
-		FileInputStream fis = new FileInputStream(file);
-		this.fromStream(fis, -1);
-		fis.close();
+		this.fromFile(file, false);
+	}
+
+	/**
+	 * Load KVS from file. This will merge over the existing KVS data.
+	 * @param file
+	 * @param mapped If set to true the file is memory mapped and decoded directly
+	 * from the mapped pages instead of being copied through a stream. This is
+	 * recommended for large files such as KVS logs. Files larger than 2 GB are
+	 * mapped in multiple windows.
+	 * @throws Exception 
+	 */
+	public void fromFile(File file, boolean mapped) throws Exception
+	{
+		this.fromFile(file, mapped, false);
+	}
+
+	/**
+	 * Load KVS from file. This will merge over the existing KVS data.
+	 * @param file
+	 * @param mapped If set to true the file is memory mapped, see fromFile(File, boolean)
+	 * @param lazy If set to true sub-structures are only decoded the first time they
+	 * are accessed, see fromString(String, boolean). This only applies to mapped files
+	 * of up to 2 GB, larger files and unmapped files are decoded in full.
+	 * @throws Exception 
+	 */
+	public void fromFile(File file, boolean mapped, boolean lazy) throws Exception
+	{
+		this.fromFile(file, mapped, lazy, null, null);
+	}
+
+	/**
+	 * Load KVS from file. This will merge over the existing KVS data.
+	 * @param file
+	 * @param mapped If set to true the file is memory mapped, see fromFile(File, boolean)
+	 * @param lazy See fromFile(File, boolean, boolean)
+	 * @param keys If not null then keys are looked up in this table, see fromString(String, boolean, KVSKeyTable, KVSKeyTable)
+	 * @param values If not null then values are looked up in this table
+	 * @throws Exception 
+	 */
+	public void fromFile(File file, boolean mapped, boolean lazy, KVSKeyTable keys, KVSKeyTable values) throws Exception
+	{
+		if(!mapped)
+		{
+			FileInputStream fis = new FileInputStream(file);
+			this.fromStream(fis, -1, keys, values);
+			fis.close();
+			return;
+		}
+
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			KVSMappedDecoder buffer = new KVSMappedDecoder(channel, lazy);
+			buffer.keys = keys;
+			buffer.values = values;
+			int count = this.fromBuffer(buffer, -1);
+			if(count==0) throw new EOFException();
+		}
 	}
 	
+	/**
+	 * Load a file of chained KVS structures, such as an append log, decoding it
+	 * on all the threads of the common ForkJoinPool. The result is exactly the
+	 * same as fromFile(file), including the auto incremented keys. Files of less
+	 * than a few MB are decoded on the calling thread.
+	 * @param file
+	 * @throws Exception 
+	 */
+	public void fromFileParallel(File file) throws Exception
+	{
+		this.fromFileParallel(file, ForkJoinPool.commonPool(), null, null);
+	}
+
+	/**
+	 * Load a file of chained KVS structures on the threads of the given pool.
+	 * The file is first scanned for the boundaries of its top-level pairs, then
+	 * cut into chunks at those boundaries that are decoded at the same time and
+	 * put into this KVS in file order. This will merge over the existing KVS data.
+	 * @param file
+	 * @param pool The pool to decode on
+	 * @param keys If not null then keys are looked up in this table, see fromString(String, boolean, KVSKeyTable, KVSKeyTable).
+	 * A table can be shared between threads.
+	 * @param values If not null then values are looked up in this table
+	 * @throws Exception 
+	 */
+	public void fromFileParallel(File file, ForkJoinPool pool, KVSKeyTable keys, KVSKeyTable values) throws Exception
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			new KVSParallelDecoder(channel, pool, keys, values).decode(this);
+		}
+	}
+
+	/**
+	 * Reads a KVS written by toWire(OutputStream) from the stream. All existing
+	 * data in this KVS with the same keys will be overwritten by the incoming data.
+	 * @param stream
+	 * @throws Exception Throws an EOFException if the stream is empty or ends in
+	 * the middle of the structure, or an IOException if it is not in the wire format.
+	 */
+	public void fromWire(InputStream stream) throws Exception
+	{
+		if(!new KVSWireReader(stream).read(this)) throw new EOFException();
+	}
+
 	/**
 	 * Reads and populates this KVS from a string. But only reads the number of 
 	 * itemCount key-value pairs before it stops reading. This method will block
@@ -124,15 +293,44 @@ public class KVS
 	 */
 	public int fromStream(InputStream stream,int itemCount) throws Exception
 	{
-		KVSBufferIn buffer = new KVSBufferIn(stream);
+		return this.fromStream(stream, itemCount, null, null);
+	}
+
+	/**
+	 * Same as fromStream(InputStream, int) but repeated keys and values can be
+	 * looked up in tables instead of being decoded every time.
+	 * @param stream The stream to read the KVS from
+	 * @param itemCount The number of key-value pairs to attempt to read.
+	 * @param keys If not null then keys are looked up in this table, see fromString(String, boolean, KVSKeyTable, KVSKeyTable)
+	 * @param values If not null then values are looked up in this table
+	 * @return The number of key-value pairs read from the stream
+	 * @throws Exception See fromStream(InputStream, int)
+	 */
+	public int fromStream(InputStream stream, int itemCount, KVSKeyTable keys, KVSKeyTable values) throws Exception
+	{
+		KVSDecoder buffer = new KVSDecoder(stream);
+		buffer.keys = keys;
+		buffer.values = values;
 		int count = this.fromBuffer(buffer, itemCount);
 		if(count==0) throw new EOFException();
 		return count;
 	}
 
-	private int fromBuffer(KVSBufferIn buffer, int itemCount)
+	int fromBuffer(KVSDecoder buffer, int itemCount)
 	{
-		int autoId = 0;
+		return this.fromBuffer(buffer, itemCount, 0);
+	}
+
+	/**
+	 * @param buffer
+	 * @param itemCount The number of pairs to read, or -1 to read to the end
+	 * @param autoId The first auto incremented key, more than 0 when the input
+	 * carries on from pairs that were decoded somewhere else
+	 * @return The number of pairs read
+	 */
+	int fromBuffer(KVSDecoder buffer, int itemCount, int autoId)
+	{
+		this.changed();
 		int count = 0;
 		try
 		{
@@ -142,12 +340,21 @@ public class KVS
 				if(key==null) break;
 				if(key.isEmpty())
 				{
+					if(autoId==0 && this.map instanceof LinkedHashMap && this.map.isEmpty()) this.map = new KVSArrayMap(); // a structure starting with an auto key is most likely a list
+					KVSArrayMap array = this.array();
+					if(array!=null && autoId==array.size()) // append to the list without building the key
+					{
+						array.add(this.fromBufferValue(buffer));
+						autoId++;
+						count++;
+						continue;
+					}
 					key = autoId+"";
 					autoId++;
 				}
 
 				Object value = this.fromBufferValue(buffer);
-				this.map.put(key, value);
+				this.map().put(key, value);
 				
 				//System.out.println(key + " "+ value);
 				
@@ -163,80 +370,141 @@ public class KVS
 	}
 
 	/**
-	 * Reads the next key from the buffer.
-	 * If the key returned is null it means that the end of the file or end of the structure has been reached.
-	 * @param buffer
-	 * @return The key read. If null it means that the structure or file has ended and there aren't anymore key-value pairs in this structure or string
+	 * Reads pairs from the wire reader up to the end of the structure, giving auto
+	 * keys exactly like fromBuffer does.
+	 * @param reader
+	 * @throws IOException
 	 */
-	private String fromBufferKey(KVSBufferIn buffer) throws IOException
+	void fromWire(KVSWireReader reader) throws IOException
 	{
-		StringBuilder key = null;
-		char next;
-
-		while(true)
+		this.changed();
+		int autoId = 0;
+		int header;
+		while((header = reader.readHeader())!=KVSWireWriter.END)
 		{
-			next = buffer.next();
-			if(next==']') // this is the end of the current structure
-			{
-				break;
-			}
-			else if(next=='[' || next=='=') // We are finished reading a key
-			{
-				if(key==null) return "";
-				else return key.toString().trim();
-			}
-			else if(next=='~') // We are finished reading a key, but we first have to read through metadata to get the stream to the correct position.
+			String key = reader.readKey(header);
+			if(key==null)
 			{
-				while(next!='[' && next!='=') next = buffer.next(); // Reading through meta data (future protocol)
-				if(key==null) return "";
-				else return key.toString().trim();
-			}
-			else if(key!=null || (next!='\n' && next!='\r' && next!='\t' && next!=' '))
-			{
-				if(key==null) key = new StringBuilder();
-				key.append(next);
+				if(autoId==0 && this.map instanceof LinkedHashMap && this.map.isEmpty()) this.map = new KVSArrayMap();
+				KVSArrayMap array = this.array();
+				if(array!=null && autoId==array.size())
+				{
+					array.add(reader.readValue(header));
+					autoId++;
+					continue;
+				}
+				key = autoId+"";
+				autoId++;
 			}
+			this.map().put(key, reader.readValue(header));
 		}
+	}
 
-		return null; // We are at the end of the string and haven't gotten a key, so return null to signal end of string or end of structure
+	/**
+	 * Reads the next key from the buffer.
+	 * If the key returned is null it means that the end of the file or end of the structure has been reached.
+	 * @param buffer
+	 * @return The key read. If null it means that the structure or file has ended and there aren't anymore key-value pairs in this structure or string
+	 */
+	private String fromBufferKey(KVSDecoder buffer) throws IOException
+	{
+		return buffer.readKey();
 	}
 
-	private Object fromBufferValue(KVSBufferIn buffer) throws IOException
+	private Object fromBufferValue(KVSDecoder buffer) throws IOException
 	{
-		char prev = buffer.prevChar();
-		if(prev=='=')
-			return this.fromBufferValuePrimitive(buffer);
+		if(buffer.prev()=='=')
+			return buffer.readPrimitive();
+		else if(buffer.isLazy()) // only record where the structure is, it's decoded when it's first accessed
+		{
+			KVS kvs = new KVS();
+			kvs.lazySource = buffer;
+			kvs.lazyStart = buffer.pos;
+			buffer.skipStructure();
+			kvs.lazyEnd = buffer.pos;
+			return kvs;
+		}
 		else // the only other option is that it's a structuve
 			return new KVS(buffer);
 	}
 
-	private String fromBufferValuePrimitive(KVSBufferIn buffer) throws IOException
+	/**
+	 * @return The number of bytes this structure was lazily decoded from, or -1 if it has been decoded
+	 */
+	int lazyLength()
 	{
-		StringBuilder value = null;
-		char next;
-		while(true)
-		{
-			next = buffer.next();
-			if(next==';')
-			{
-				try
-				{
-					if(buffer.peek()!=';') break;
-					else
-						buffer.next(); // just read past the next character
-				}
-				catch(IOException e)
-				{
-					break;
-				}
-			} 
+		return this.lazySource!=null ? this.lazyEnd - this.lazyStart : -1;
+	}
 
-			if(value==null) value = new StringBuilder();
-			value.append(next);
+	/**
+	 * Returns the map of this structure, decoding it first if it was lazily decoded
+	 */
+	Map<String, Object> map()
+	{
+		if(this.lazySource!=null)
+		{
+			KVSDecoder buffer = this.lazySource.slice(this.lazyStart, this.lazyEnd);
+			this.lazySource = null;
+			this.fromBuffer(buffer, -1);
 		}
+		return this.map;
+	}
 
-		if(value==null) return "";
-		else return value.toString();
+	/**
+	 * @return The map of this structure if it's a list, otherwise null
+	 */
+	KVSArrayMap array()
+	{
+		Map<String, Object> map = this.map();
+		return map instanceof KVSArrayMap && ((KVSArrayMap) map).isArray() ? (KVSArrayMap) map : null;
+	}
+
+	/**
+	 * Returns true if this structure is held as a list. That is the case when
+	 * it was decoded from a structure starting with an auto incremented key, or
+	 * built by calling add() on an empty KVS, and every key since has been the
+	 * next auto incremented one. A list finds values by index directly and
+	 * stores no keys. It turns back into a map as soon as anything else is set.
+	 * @return
+	 */
+	public boolean isArray()
+	{
+		return this.array()!=null;
+	}
+
+	/**
+	 * Turns this KVS and all its sub-structures into a compact, immutable form.
+	 * Every structure keeps its keys and values in a single array instead of a
+	 * LinkedHashMap, which makes a frozen tree a fraction of the size. It can
+	 * be read exactly like before, but anything that would change it, such as
+	 * set, remove, add or decoding into it, throws an UnsupportedOperationException.
+	 * <p>
+	 * A lazily decoded tree is fully decoded first. Once frozen, a tree can be
+	 * read by any number of threads at the same time.
+	 * </p>
+	 * @return This KVS. For chaining purposes.
+	 */
+	public KVS freeze()
+	{
+		if(this.isFrozen()) return this;
+
+		for(Object value : this.map().values())
+			if(value instanceof KVS) ((KVS) value).freeze();
+		KVSArrayMap array = this.array();
+		if(array!=null)
+			array.freeze(); // a list is already compact
+		else
+			this.map = new KVSFrozenMap(this.map);
+		return this;
+	}
+
+	/**
+	 * @return true if freeze() has been called on this KVS or on one that contains it,
+	 * or if it is part of a PersistentKVS
+	 */
+	public boolean isFrozen()
+	{
+		return this.map instanceof KVSFrozenMap || this.map instanceof KVSPersistentMap || (this.map instanceof KVSArrayMap && ((KVSArrayMap) this.map).isFrozen());
 	}
 
 	/**
@@ -245,7 +513,52 @@ public class KVS
 	 */
 	public boolean isEmpty()
 	{
-		return this.map.isEmpty();
+		return this.map().isEmpty();
+	}
+
+	/**
+	 * Keeps the compact encoding of this KVS, and of every sub-structure of at
+	 * least KVSEncoder.KEEP_SIZE bytes, between calls to toString() and
+	 * toStream(out, false, wrapKey). Writing it again then only encodes the
+	 * structures that have changed since, copying the bytes of the rest, and
+	 * writing it unchanged is just a copy. A set, remove, add, merge or decode
+	 * marks the structure it changes and every one above it as changed.
+	 * <p>
+	 * The kept bytes can take as much memory as the encoding for every level of
+	 * nesting. A structure holding a sub-structure that is also held somewhere else, unless it's
+	 * frozen, or a value that isn't text, a number, binary or a KVS is always
+	 * encoded again. Pretty and parallel encoding don't use the cache.
+	 * </p>
+	 * @param cache If false the kept bytes are dropped
+	 * @return This KVS. For chaining purposes.
+	 */
+	public KVS cacheEncoding(boolean cache)
+	{
+		this.cacheEncoding = cache;
+		if(!cache)
+		{
+			this.changed(); // the structures holding this one keep its bytes in theirs
+			this.dropEncoding();
+		}
+		return this;
+	}
+
+	private void dropEncoding()
+	{
+		if(this.lazySource!=null) return; // never written, so nothing below is kept
+		this.encoded = null;
+		for(Object value : this.map.values())
+			if(value instanceof KVS) ((KVS) value).dropEncoding();
+	}
+
+	/**
+	 * Drops the encoding kept for cacheEncoding() by this structure and by the
+	 * ones holding it, up to the first that has none kept. Called before this
+	 * structure is changed.
+	 */
+	void changed()
+	{
+		for(KVS kvs = this; kvs!=null && kvs.encoded!=null; kvs = kvs.parent) kvs.encoded = null;
 	}
 
 	/**
@@ -274,10 +587,91 @@ public class KVS
 	 */
 	public void toStream(OutputStream out, boolean pretty, String wrapKey) throws Exception
 	{
-		out.write(this.toString(pretty, wrapKey).getBytes());
-		out.flush();
+		// Encodes straight to UTF-8 bytes in chunks, without building the whole document as a string first
+		KVSEncoder encoder = new KVSEncoder(out);
+		if(this.cacheEncoding && !pretty)
+			encoder.writeCached(this, wrapKey);
+		else
+			encoder.write(this, wrapKey, pretty);
+		encoder.flush();
 	}
-	
+
+	/**
+	 * Writes this KVS to the provided output stream in the compact binary wire
+	 * format instead of as text, see KVSWireWriter. The stream holds only this
+	 * KVS, use a KVSWireWriter to write several structures that share their keys.
+	 * @param out
+	 * @throws Exception
+	 */
+	public void toWire(OutputStream out) throws Exception
+	{
+		KVSWireWriter writer = new KVSWireWriter(out);
+		writer.write(this);
+		writer.flush();
+	}
+
+	/**
+	 * Streams this KVS to the provided output stream like toStream(out, pretty, wrapKey),
+	 * encoding the top-level pairs on all the threads of the common ForkJoinPool.
+	 * The output is byte for byte the same. Small structures are encoded on the
+	 * calling thread.
+	 * @param out
+	 * @param pretty
+	 * @param wrapKey
+	 * @throws Exception
+	 */
+	public void toStreamParallel(OutputStream out, boolean pretty, String wrapKey) throws Exception
+	{
+		this.toStreamParallel(out, pretty, wrapKey, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Streams this KVS to the provided output stream like toStream(out, pretty, wrapKey),
+	 * encoding chunks of the top-level pairs on the threads of the given pool into
+	 * their own buffers, which are then written in order. The structure must not
+	 * be changed while it is being encoded.
+	 * @param out
+	 * @param pretty
+	 * @param wrapKey
+	 * @param pool The pool to encode on
+	 * @throws Exception
+	 */
+	public void toStreamParallel(OutputStream out, boolean pretty, String wrapKey, ForkJoinPool pool) throws Exception
+	{
+		new KVSParallelEncoder(pool).write(this, wrapKey, pretty, out);
+	}
+
+	/**
+	 * Writes this KVS to a file, replacing what was in it, the same as toStream(out, pretty, wrapKey)
+	 * would. The top-level pairs are encoded on all the threads of the common ForkJoinPool.
+	 * @param file
+	 * @param pretty
+	 * @param wrapKey
+	 * @throws Exception
+	 */
+	public void toFileParallel(File file, boolean pretty, String wrapKey) throws Exception
+	{
+		this.toFileParallel(file, pretty, wrapKey, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Writes this KVS to a file, replacing what was in it, the same as toStream(out, pretty, wrapKey)
+	 * would. Chunks of the top-level pairs are encoded on the threads of the given pool,
+	 * and chunks that are ready are written to the file together with gathering writes.
+	 * @param file
+	 * @param pretty
+	 * @param wrapKey
+	 * @param pool The pool to encode on
+	 * @throws Exception
+	 */
+	public void toFileParallel(File file, boolean pretty, String wrapKey, ForkJoinPool pool) throws Exception
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			new KVSParallelEncoder(pool).write(this, wrapKey, pretty, channel);
+		}
+	}
+
 	/**
 	 * Encode this KVS into a string that is as small as possible while preserving all data and structure.
 	 */
@@ -297,60 +691,108 @@ public class KVS
 	 */
 	public String toString(boolean pretty, String wrapKey)
 	{
+		if(this.cacheEncoding && !pretty) return KVSEncoder.toString(this, wrapKey);
+
 		StringBuilder buffer = new StringBuilder();
-		this.toString(buffer, wrapKey, pretty ? "" : null);
+		this.toString(buffer, wrapKey, pretty ? 0 : -1);
 
 		return buffer.toString();
 	}
 
-	private void toString(StringBuilder buffer, String wrapKey, String indent)
+	/**
+	 * @param indent The number of tabs to indent with, or -1 if it should not be pretty
+	 */
+	private void toString(StringBuilder buffer, String wrapKey, int indent)
 	{
 		if(wrapKey!=null)
 		{
-			if(indent==null) buffer.append(wrapKey+"[");
-			else buffer.append("\n"+indent+wrapKey+"[\n");
+			if(indent<0) buffer.append(wrapKey).append('[');
+			else this.toStringTabs(buffer.append('\n'), indent).append(wrapKey).append("[\n");
 		}
 
-		if(!map.isEmpty())
+		KVSArrayMap array = this.array();
+		if(array!=null) // every key is an auto key, so there are none to write
 		{
-			int autoIdInt = 0;
-			String autoIdString = autoIdInt+"";
-			Set<Entry<String,Object>> entries = map.entrySet();
+			int indentSub = (indent < 0 ? -1 : (wrapKey!=null ? indent + 1 : indent));
+			int size = array.size();
+			for(int i=0;i<size;i++) this.toStringPair(buffer, "", array.element(i), indentSub);
+		}
+		else if(!this.map().isEmpty())
+		{
+			int autoId = 0;
+			Set<Entry<String,Object>> entries = this.map().entrySet();
 			String key;
-			String indentSub = (indent == null ? null : (wrapKey!=null ? indent + "\t" : indent));
+			int indentSub = (indent < 0 ? -1 : (wrapKey!=null ? indent + 1 : indent));
 			for(Entry<String,Object> entry : entries)
 			{
 				key = entry.getKey();
-				if(key.equals(autoIdString))
+				if(KVSEncoder.isAutoKey(key, autoId)) // compare the digits, so that no string is built for every auto key
 				{
 					key = "";
-					autoIdInt++;
-					autoIdString = autoIdInt + "";
+					autoId++;
 				}
-				this.toStringKey(buffer,key,indentSub);
-				Object value = entry.getValue();
-				if(value!=null && value.getClass().equals(KVS.class))
-					((KVS)value).toString(buffer, "", indentSub);
-				else
-					this.toStringValue(buffer,value+"", indentSub);
+				this.toStringPair(buffer, key, entry.getValue(), indentSub);
 			}
 		}
 
 		if(wrapKey!=null)
 		{
-			if(indent==null) buffer.append("]");
-			else buffer.append(indent+"]\n");
+			if(indent<0) buffer.append(']');
+			else this.toStringTabs(buffer, indent).append("]\n");
 		} 
 	}
 
-	private void toStringKey(StringBuilder buffer, String key, String indent) // This is a single line function for now so that we can add metadata later on
+	private void toStringPair(StringBuilder buffer, String key, Object value, int indent)
+	{
+		this.toStringKey(buffer, key, indent);
+		if(value!=null && value.getClass().equals(KVS.class))
+			((KVS)value).toString(buffer, "", indent);
+		else
+			this.toStringValue(buffer, value, indent);
+	}
+
+	private StringBuilder toStringTabs(StringBuilder buffer, int indent)
+	{
+		for(int i=0;i<indent;i++) buffer.append('\t');
+		return buffer;
+	}
+
+	private void toStringKey(StringBuilder buffer, String key, int indent) // This is a single line function for now so that we can add metadata later on
 	{
-		buffer.append(indent==null ? key : indent + key);
+		this.toStringTabs(buffer, indent).append(key);
 	}
 
-	private void toStringValue(StringBuilder buffer, String value, String indent)
+	private void toStringValue(StringBuilder buffer, Object value, int indent)
 	{
-		buffer.append("="+value.replace(";", ";;")+";" + (indent == null ? "" : "\n"));
+		buffer.append('=');
+		if(value instanceof Integer || value instanceof Long) // digits never need escaping
+			buffer.append(((Number)value).longValue());
+		else if(value instanceof KVSNumber && !((KVSNumber)value).isDecimal())
+			buffer.append(((KVSNumber)value).longValue());
+		else if(value instanceof KVSBinary) // Base64 never needs escaping
+			((KVSBinary)value).appendTo(buffer);
+		else
+			this.toStringEscaped(buffer, value instanceof String ? (String)value : String.valueOf(value));
+		buffer.append(';');
+		if(indent>=0) buffer.append('\n');
+	}
+
+	private void toStringEscaped(StringBuilder buffer, String value)
+	{
+		if(value.indexOf(';')<0) // nothing to escape, so append it as is
+		{
+			buffer.append(value);
+			return;
+		}
+
+		int length = value.length();
+		char c;
+		for(int i=0;i<length;i++)
+		{
+			c = value.charAt(i);
+			if(c==';') buffer.append(';');
+			buffer.append(c);
+		}
 	}
 	
 	private final static String KEY_COLOUR = "\033[0;36m";
@@ -379,7 +821,7 @@ public class KVS
 			String key = entry.getKey();
 			Object value = entry.getValue();
 			if (key.equals(count + "")) key = "" ;
-			if (value instanceof String) result += indent + colourise(key, KEY_COLOUR2) + "=" + colourise(value.toString(), VALUE_COLOUR) + ";";
+			if (value == null || !value.getClass().equals(KVS.class)) result += indent + colourise(key, KEY_COLOUR2) + "=" + colourise(String.valueOf(value), VALUE_COLOUR) + ";"; // numbers and binary are primitives too
 			else result += indent + colourise(key, KEY_COLOUR) + "\n" + 
 							indent + "[\n" + 
 									toStringColourful((KVS) value, depth+1, null) + "\n" + 
@@ -410,9 +852,28 @@ public class KVS
 	 */
 	public long getLong(long defaultValue, String... keys)
 	{
-		long result = 0;
-		try{ result = Long.parseLong(this.get(keys)); }catch(Exception e){ result = defaultValue; };
-		return result;
+		return KVSNumber.toLong(this.getNative(keys), Long.MIN_VALUE, Long.MAX_VALUE, defaultValue);
+	}
+
+	/**
+	 * The same as getLong(String... keys)
+	 * @param path
+	 * @return 
+	 */
+	public long getLong(KVSPath path)
+	{
+		return this.getLong(0, path);
+	}
+
+	/**
+	 * The same as getLong(long defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param path
+	 * @return 
+	 */
+	public long getLong(long defaultValue, KVSPath path)
+	{
+		return KVSNumber.toLong(this.getNative(path.keys), Long.MIN_VALUE, Long.MAX_VALUE, defaultValue);
 	}
 	
 	/**
@@ -436,9 +897,28 @@ public class KVS
 	 */	
 	public int getInt(int defaultValue, String... keys)
 	{
-		int result = 0;
-		try{ result = Integer.parseInt(this.get(keys)); }catch(Exception e){ result = defaultValue; };
-		return result;
+		return (int) KVSNumber.toLong(this.getNative(keys), Integer.MIN_VALUE, Integer.MAX_VALUE, defaultValue);
+	}
+
+	/**
+	 * The same as getInt(String... keys)
+	 * @param path
+	 * @return 
+	 */
+	public int getInt(KVSPath path)
+	{
+		return this.getInt(0, path);
+	}
+
+	/**
+	 * The same as getInt(int defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param path
+	 * @return 
+	 */
+	public int getInt(int defaultValue, KVSPath path)
+	{
+		return (int) KVSNumber.toLong(this.getNative(path.keys), Integer.MIN_VALUE, Integer.MAX_VALUE, defaultValue);
 	}
 	
 	/**
@@ -466,6 +946,17 @@ public class KVS
 		return defaultValue;
 	}
 
+	/**
+	 * The same as getString(String defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param path
+	 * @return 
+	 */
+	public String getString(String defaultValue, KVSPath path)
+	{
+		return this.getString(defaultValue, path.keys);
+	}
+
 	/**
 	 * This method internally calls the get(String... keyPath) method, but additionally
 	 * coverts the result returned to a primitive short. If the result cannot be converted
@@ -475,9 +966,28 @@ public class KVS
 	 */	
 	public short getShort(short defaultValue, String... keys)
 	{
-		short result = 0;
-		try{ result = Short.parseShort(this.get(keys)); }catch(Exception e){ result = defaultValue; };
-		return result;
+		return (short) KVSNumber.toLong(this.getNative(keys), Short.MIN_VALUE, Short.MAX_VALUE, defaultValue);
+	}
+
+	/**
+	 * The same as getShort(String... keys)
+	 * @param path
+	 * @return 
+	 */
+	public short getShort(KVSPath path)
+	{
+		return this.getShort((short)0, path);
+	}
+
+	/**
+	 * The same as getShort(short defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param path
+	 * @return 
+	 */
+	public short getShort(short defaultValue, KVSPath path)
+	{
+		return (short) KVSNumber.toLong(this.getNative(path.keys), Short.MIN_VALUE, Short.MAX_VALUE, defaultValue);
 	}
 	
 	/**
@@ -501,9 +1011,28 @@ public class KVS
 	 */	
 	public byte getByte(byte defaultValue, String... keys)
 	{
-		byte result = 0;
-		try{ result = Byte.parseByte(this.get(keys)); }catch(Exception e){ result = defaultValue; };
-		return result;
+		return (byte) KVSNumber.toLong(this.getNative(keys), Byte.MIN_VALUE, Byte.MAX_VALUE, defaultValue);
+	}
+
+	/**
+	 * The same as getByte(String... keys)
+	 * @param path
+	 * @return 
+	 */
+	public byte getByte(KVSPath path)
+	{
+		return this.getByte((byte)0, path);
+	}
+
+	/**
+	 * The same as getByte(byte defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param path
+	 * @return 
+	 */
+	public byte getByte(byte defaultValue, KVSPath path)
+	{
+		return (byte) KVSNumber.toLong(this.getNative(path.keys), Byte.MIN_VALUE, Byte.MAX_VALUE, defaultValue);
 	}
 
 	/**
@@ -527,9 +1056,28 @@ public class KVS
 	 */	
 	public double getDouble(double defaultValue, String... keys)
 	{
-		double result = 0;
-		try{ result = Double.parseDouble(this.get(keys)); }catch(Exception e){ result = defaultValue; };
-		return result;
+		return KVSNumber.toDouble(this.getNative(keys), defaultValue);
+	}
+
+	/**
+	 * The same as getDouble(String... keys)
+	 * @param path
+	 * @return 
+	 */
+	public double getDouble(KVSPath path)
+	{
+		return this.getDouble(0, path);
+	}
+
+	/**
+	 * The same as getDouble(double defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param path
+	 * @return 
+	 */
+	public double getDouble(double defaultValue, KVSPath path)
+	{
+		return KVSNumber.toDouble(this.getNative(path.keys), defaultValue);
 	}
 
 	/**
@@ -553,9 +1101,80 @@ public class KVS
 	 */	
 	public float getFloat(float defaultValue, String... keys)
 	{
-		float result = 0;
-		try{ result = Float.parseFloat(this.get(keys)); }catch(Exception e){ result = defaultValue; };
-		return result;
+		return KVSNumber.toFloat(this.getNative(keys), defaultValue);
+	}
+
+	/**
+	 * The same as getFloat(String... keys)
+	 * @param path
+	 * @return 
+	 */
+	public float getFloat(KVSPath path)
+	{
+		return this.getFloat(0, path);
+	}
+
+	/**
+	 * The same as getFloat(float defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param path
+	 * @return 
+	 */
+	public float getFloat(float defaultValue, KVSPath path)
+	{
+		return KVSNumber.toFloat(this.getNative(path.keys), defaultValue);
+	}
+
+	/**
+	 * Get a binary value referenced by the key path. A value set with
+	 * setBytes(byte[], String...) is returned as it was set, and a text value, such
+	 * as one that was decoded, is decoded from unpadded URL safe Base64.
+	 * @param keys The key path
+	 * @return A new array with the bytes, or null if the key-value pair does not
+	 * exist, is a structure or is not Base64.
+	 */
+	public byte[] getBytes(String... keys)
+	{
+		return KVSBinary.toBytes(this.getNative(keys));
+	}
+
+	/**
+	 * The same as getBytes(String... keys)
+	 * @param path The key path
+	 * @return
+	 */
+	public byte[] getBytes(KVSPath path)
+	{
+		return KVSBinary.toBytes(this.getNative(path.keys));
+	}
+
+	/**
+	 * Put a binary value referenced by the key path into the target, the same as
+	 * getBytes(String... keys) but without allocating anything. A text value is
+	 * decoded from Base64 straight into the target. Values decoded into a KVS
+	 * are held as text, use KVSReader.next(String, ByteBuffer) to decode Base64
+	 * out of the input without building that text first.
+	 * @param target The bytes are put at its position, which is moved past them
+	 * @param keys The key path
+	 * @return The number of bytes put, or -1 if the key-value pair does not exist,
+	 * is a structure or is not Base64.
+	 * @throws BufferOverflowException If the bytes don't fit into the remaining
+	 * space of the target. Nothing is put then.
+	 */
+	public int getBytes(ByteBuffer target, String... keys)
+	{
+		return KVSBinary.copyTo(this.getNative(keys), target);
+	}
+
+	/**
+	 * The same as getBytes(ByteBuffer target, String... keys)
+	 * @param target
+	 * @param path The key path
+	 * @return
+	 */
+	public int getBytes(ByteBuffer target, KVSPath path)
+	{
+		return KVSBinary.copyTo(this.getNative(path.keys), target);
 	}
 	
 	/**
@@ -568,32 +1187,46 @@ public class KVS
 	 */
 	public String get(String... keys)
 	{
-		KVS kvs = this;
-		String result = "";
-		Object obj;
-		int keyCount = keys.length-1;
-		int counter = 0;
-		for(String key : keys)
-		{
-			obj = kvs.map.get(key);
-			if(obj==null) return "";
-
-			if(counter<keyCount) // use this up until the second last key
-			{
-				if(!obj.getClass().equals(String.class)) // only continue if all keys except the second last key is a kvs
-					kvs = (KVS)obj;
-				else
-					return "";
-			}
-			else // only on the last key extract the result as a String
-				result = obj.toString().trim();
-
-			counter++;
-		}
+		Object obj = this.getNative(keys);
+		return obj==null ? "" : obj.toString().trim();
+	}
 
-		return result;
+	/**
+	 * The same as get(String... keys)
+	 * @param path The key path
+	 * @return A string version of the value that the key path is referencing.
+	 */
+	public String get(KVSPath path)
+	{
+		return this.get(path.keys);
 	}
 	
+	/**
+	 * Get the primitive value string of an auto incremented key, the same as
+	 * get(Integer.toString(index)). If this structure is a list the value is
+	 * found directly, without building the key.
+	 * @param index
+	 * @return A string version of the value at the index, or an empty string if there is none
+	 */
+	public String get(int index)
+	{
+		Object obj = this.getNative(index);
+		return obj==null ? "" : obj.toString().trim();
+	}
+
+	/**
+	 * The same as getNative(Integer.toString(index)), but if this structure is
+	 * a list the value is found directly, without building the key.
+	 * @param index
+	 * @return Object that can be NULL or a String or a KVS
+	 */
+	public Object getNative(int index)
+	{
+		KVSArrayMap array = this.array();
+		if(array!=null) return index>=0 && index<array.size() ? array.element(index) : null;
+		return this.map().get(Integer.toString(index));
+	}
+
 	/**
 	 * This method assists in fetching dynamic data. If the type of the keyPath is
 	 * a primitive value then the method would return a string array with only one 
@@ -633,7 +1266,7 @@ public class KVS
 	{
 		if(keyPath==null || keyPath.length==0)
 		{
-			String[] result = this.map.values().toArray(new String[0]);
+			String[] result = this.map().values().toArray(new String[0]);
 			this.trimArray(result);
 			return result;
 		}
@@ -652,6 +1285,16 @@ public class KVS
 			return new String[]{value.toString().trim()};
 		}
 	}
+
+	/**
+	 * The same as getList(String... keyPath)
+	 * @param path
+	 * @return a String array of the data.
+	 */
+	public String[] getList(KVSPath path)
+	{
+		return this.getList(path.keys);
+	}
 	
 	/**
 	 * This method gets a sub structure of the specified keyPath and returns a map of it.
@@ -690,6 +1333,16 @@ public class KVS
 		
 		return result;
 	}
+
+	/**
+	 * The same as getMap(String... keyPath)
+	 * @param path
+	 * @return 
+	 */
+	public Map<String, String> getMap(KVSPath path)
+	{
+		return this.getMap(path.keys);
+	}
 	
 	/**
 	 * This method will bypass any null pointer checking and will return what is
@@ -703,31 +1356,64 @@ public class KVS
 	 * @return Object that can be NULL or a String or a KVS
 	 */
 	public Object getNative(String... keyPath)
+	{
+		if(keyPath.length==0) return null;
+		KVS kvs = this.parent(keyPath);
+		return kvs==null ? null : kvs.map().get(keyPath[keyPath.length-1]);
+	}
+
+	/**
+	 * The same as getNative(String... keyPath)
+	 * @param path
+	 * @return Object that can be NULL or a String or a KVS
+	 */
+	public Object getNative(KVSPath path)
+	{
+		return this.getNative(path.keys);
+	}
+
+	/**
+	 * Finds the structure holding the last key of the path
+	 * @param keys
+	 * @return The structure, or null if any key except the last one is not a structure
+	 */
+	private KVS parent(String[] keys)
 	{
 		KVS kvs = this;
-		Object result = null;
 		Object obj;
-		int keyCount = keyPath.length-1;
-		int counter = 0;
-		for(String key : keyPath)
+		int keyCount = keys.length-1;
+		for(int i=0;i<keyCount;i++)
 		{
-			obj = kvs.map.get(key);
-			if(obj==null) return null;
+			obj = kvs.map().get(keys[i]);
+			if(!(obj instanceof KVS)) return null; // only continue if all keys except the last key is a kvs
+			kvs = (KVS)obj;
+		}
+		return kvs;
+	}
 
-			if(counter<keyCount) // use this up until the second last key
+	/**
+	 * Finds the structure holding the last key of the path, replacing any key
+	 * except the last one that is not a structure with a new structure
+	 * @param keys
+	 * @return The structure
+	 */
+	private KVS parentForSet(String[] keys)
+	{
+		KVS kvs = this;
+		Object obj;
+		int keyCount = keys.length-1;
+		for(int i=0;i<keyCount;i++)
+		{
+			obj = kvs.map().get(keys[i]);
+			if(obj instanceof KVS)
+				kvs = (KVS)obj;
+			else
 			{
-				if(!obj.getClass().equals(String.class)) // only continue if all keys except the second last key is a kvs
-					kvs = (KVS)obj;
-				else
-					return null;
+				kvs.changed();
+				kvs.map().put(keys[i], kvs=new KVS());
 			}
-			else // only on the last key extract the result as a String
-				result = obj;
-
-			counter++;
 		}
-
-		return result;		
+		return kvs;
 	}
 
 	/**
@@ -742,15 +1428,28 @@ public class KVS
 		Object obj;
 		for(String key : keys)
 		{
-			obj = kvs.map.get(key);
-			if(obj!=null && obj.getClass().equals(KVS.class))
+			obj = kvs.map().get(key);
+			if(obj instanceof KVS)
 				kvs = (KVS)obj;
 			else
-				kvs.map.put(key, kvs = new KVS());
+			{
+				kvs.changed();
+				kvs.map().put(key, kvs = new KVS());
+			}
 		}
 
 		return kvs;
 	}
+
+	/**
+	 * The same as getKvs(String... keys)
+	 * @param path The key path
+	 * @return The KVS structure at the key path reference.
+	 */
+	public KVS getKvs(KVSPath path)
+	{
+		return this.getKvs(path.keys);
+	}
 	
 	
 
@@ -764,27 +1463,125 @@ public class KVS
 	 */
 	public KVS set(Object value, String... keys)
 	{
-		KVS kvs = this;
-		Object obj;
-		int keyCount = keys.length-1;
-		int counter = 0;		
-		for(String key : keys)
-		{
-			obj = kvs.map.get(key);
+		if(keys.length==0) return this;
+		KVS kvs = this.parentForSet(keys);
+		kvs.changed();
+		kvs.map().put(keys[keys.length-1], value);
+		return this;
+	}
 
-			if(counter<keyCount) // use this up until the second last key
-			{
-				if(obj==null || obj.getClass().equals(String.class))
-					kvs.map.put(key, kvs=new KVS());
-				else
-					kvs = (KVS)obj;
-			}
-			else // only on the last key to put the value
-				kvs.map.put(key, value);
+	/**
+	 * The same as set(Object value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS set(Object value, KVSPath path)
+	{
+		return this.set(value, path.keys);
+	}
 
-			counter++;
-		}
-		return this;
+	/**
+	 * Set a whole number referenced by the key path. The number is stored as
+	 * a number and not as text, so the numeric getters read it without parsing.
+	 * It is encoded exactly like its decimal text.
+	 * @param value
+	 * @param keys The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setLong(long value, String... keys)
+	{
+		return this.set(new KVSNumber(value), keys);
+	}
+
+	/**
+	 * The same as setLong(long value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setLong(long value, KVSPath path)
+	{
+		return this.set(new KVSNumber(value), path.keys);
+	}
+
+	/**
+	 * Set a decimal number referenced by the key path. The number is stored as
+	 * a number and not as text, so the numeric getters read it without parsing.
+	 * It is encoded exactly like Double.toString(value).
+	 * @param value
+	 * @param keys The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setDouble(double value, String... keys)
+	{
+		return this.set(new KVSNumber(value), keys);
+	}
+
+	/**
+	 * The same as setDouble(double value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setDouble(double value, KVSPath path)
+	{
+		return this.set(new KVSNumber(value), path.keys);
+	}
+
+	/**
+	 * Set a binary value referenced by the key path. The bytes are copied and
+	 * kept as they are. They are only encoded, as unpadded URL safe Base64
+	 * (RFC 4648), when the KVS is written out, and toStream writes them a
+	 * buffer full at a time.
+	 * @param value
+	 * @param keys The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setBytes(byte[] value, String... keys)
+	{
+		return this.set(new KVSBinary(value.clone()), keys);
+	}
+
+	/**
+	 * The same as setBytes(byte[] value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setBytes(byte[] value, KVSPath path)
+	{
+		return this.set(new KVSBinary(value.clone()), path.keys);
+	}
+
+	/**
+	 * The same as setBytes(byte[] value, String... keys), with the remaining bytes of
+	 * the buffer. The position of the buffer is not changed.
+	 * @param value
+	 * @param keys The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setBytes(ByteBuffer value, String... keys)
+	{
+		return this.set(bytes(value), keys);
+	}
+
+	/**
+	 * The same as setBytes(ByteBuffer value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setBytes(ByteBuffer value, KVSPath path)
+	{
+		return this.set(bytes(value), path.keys);
+	}
+
+	private static KVSBinary bytes(ByteBuffer value)
+	{
+		byte[] bytes = new byte[value.remaining()];
+		value.duplicate().get(bytes);
+		return new KVSBinary(bytes);
 	}
 	
 	/**
@@ -798,27 +1595,26 @@ public class KVS
 	 */
 	public KVS setDefault(Object value, String... keys)
 	{
-		KVS kvs = this;
-		Object obj;
-		int keyCount = keys.length-1;
-		int counter = 0;		
-		for(String key : keys)
+		if(keys.length==0) return this;
+		KVS kvs = this.parentForSet(keys);
+		String key = keys[keys.length-1];
+		if(!kvs.map().containsKey(key)) // only put the value if the key does not exist already
 		{
-			obj = kvs.map.get(key);
-
-			if(counter<keyCount) // use this up until the second last key
-			{
-				if(obj==null || obj.getClass().equals(String.class))
-					kvs.map.put(key, kvs=new KVS());
-				else
-					kvs = (KVS)obj;
-			}
-			else if(!kvs.map.containsKey(key)) // only on the last key to put the value, if the key does not exist already
-				kvs.map.put(key, value);
-
-			counter++;
+			kvs.changed();
+			kvs.map().put(key, value);
 		}
-		return this;		
+		return this;
+	}
+
+	/**
+	 * The same as setDefault(Object value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The current KVS structure. For chaining purposes.
+	 */
+	public KVS setDefault(Object value, KVSPath path)
+	{
+		return this.setDefault(value, path.keys);
 	}
 	
 	/**
@@ -828,7 +1624,7 @@ public class KVS
 	 */
 	public int size()
 	{
-		return this.map.size();
+		return this.map().size();
 	}
 	
 	/**
@@ -839,7 +1635,13 @@ public class KVS
 	 */
 	public KVS add(Object value)
 	{
-		this.set(value, this.autoKey+"");
+		this.changed();
+		if(this.autoKey==0 && this.map instanceof LinkedHashMap && this.map().isEmpty()) this.map = new KVSArrayMap();
+		KVSArrayMap array = this.array();
+		if(array!=null && this.autoKey==array.size())
+			array.add(value);
+		else
+			this.set(value, this.autoKey+"");
 		this.autoKey++;
 		return this;
 	}
@@ -860,35 +1662,65 @@ public class KVS
 	 */
 	public void remove(String... keys)
 	{
-		KVS kvs = this;
-		Object obj;
-		int keyCount = keys.length-1;
-		int counter = 0;
-		for(String key : keys)
+		if(keys.length==0) return;
+		KVS kvs = this.parent(keys);
+		if(kvs!=null && kvs.map().containsKey(keys[keys.length-1]))
 		{
-			obj = kvs.map.get(key);
-			if(obj==null) return;
-
-			if(counter<keyCount) // use this up until the second last key
-			{
-				if(!obj.getClass().equals(String.class)) // only continue if all keys except the second last key is a kvs
-					kvs = (KVS)obj;
-				else
-					return;
-			}
-			else // only on the last key extract the result as a String
-				kvs.map.remove(key);
-
-			counter++;
+			kvs.changed();
+			kvs.map().remove(keys[keys.length-1]);
 		}
 	}
+
+	/**
+	 * The same as remove(String... keys)
+	 * @param path The key path
+	 */
+	public void remove(KVSPath path)
+	{
+		this.remove(path.keys);
+	}
+
 	/**
 	 * Get all the keys in this KVS's root structure as a Set.
 	 * @return The keys
 	 */
 	public Set<String> keySet()
 	{
-		return this.map.keySet();
+		// the views look the map up every time, as it's replaced when a structure turns into a list or is frozen
+		return new AbstractSet<String>()
+		{
+			@Override
+			public Iterator<String> iterator()
+			{
+				return KVS.this.changing(KVS.this.map().keySet().iterator());
+			}
+
+			@Override
+			public int size()
+			{
+				return KVS.this.map().size();
+			}
+
+			@Override
+			public boolean contains(Object key)
+			{
+				return KVS.this.map().containsKey(key);
+			}
+
+			@Override
+			public boolean remove(Object key)
+			{
+				if(!KVS.this.map().containsKey(key)) return false;
+				KVS.this.changed();
+				return KVS.this.map().keySet().remove(key);
+			}
+
+			@Override
+			public void clear()
+			{
+				KVS.this.clearMap();
+			}
+		};
 	}
 
 	/**
@@ -898,7 +1730,7 @@ public class KVS
 	 */
 	public Entry<String, Object> getFirst()
 	{
-		Set<Entry<String, Object>> entries = this.map.entrySet();
+		Set<Entry<String, Object>> entries = this.map().entrySet();
 		for(Entry<String, Object> entry : entries)
 			return entry;
 
@@ -911,7 +1743,7 @@ public class KVS
 	 */
 	public String getFirstKey()
 	{
-		for(String key: this.map.keySet()) return key;
+		for(String key: this.map().keySet()) return key;
 		
 		return "";
 	}
@@ -924,7 +1756,7 @@ public class KVS
 	 */
 	public Object getFirstValue()
 	{
-		for(Object value : this.map.values()) return value;
+		for(Object value : this.map().values()) return value;
 		
 		return "";
 	}
@@ -936,7 +1768,26 @@ public class KVS
 	 */
 	public Collection<Object> values()
 	{
-		return this.map.values();
+		return new AbstractCollection<Object>()
+		{
+			@Override
+			public Iterator<Object> iterator()
+			{
+				return KVS.this.changing(KVS.this.map().values().iterator());
+			}
+
+			@Override
+			public int size()
+			{
+				return KVS.this.map().size();
+			}
+
+			@Override
+			public void clear()
+			{
+				KVS.this.clearMap();
+			}
+		};
 	}
 
 	/**
@@ -946,7 +1797,96 @@ public class KVS
 	 */
 	public Set<Entry<String, Object>> entries()
 	{
-		return this.map.entrySet();
+		return new AbstractSet<Entry<String, Object>>()
+		{
+			@Override
+			public Iterator<Entry<String, Object>> iterator()
+			{
+				Iterator<Entry<String, Object>> iterator = KVS.this.changing(KVS.this.map().entrySet().iterator());
+				return new Iterator<Entry<String, Object>>()
+				{
+					@Override
+					public boolean hasNext()
+					{
+						return iterator.hasNext();
+					}
+
+					@Override
+					public Entry<String, Object> next()
+					{
+						Entry<String, Object> entry = iterator.next();
+						// setting the value through the entry marks this KVS as changed too
+						return new AbstractMap.SimpleEntry<String, Object>(entry)
+						{
+							private static final long serialVersionUID = 1L;
+
+							@Override
+							public Object setValue(Object value)
+							{
+								KVS.this.changed();
+								Object old = entry.setValue(value);
+								super.setValue(value);
+								return old;
+							}
+						};
+					}
+
+					@Override
+					public void remove()
+					{
+						iterator.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return KVS.this.map().size();
+			}
+
+			@Override
+			public void clear()
+			{
+				KVS.this.clearMap();
+			}
+		};
+	}
+
+	/**
+	 * Wraps an iterator of one of the views, so that removing through it marks
+	 * this KVS as changed like remove() does
+	 */
+	private <T> Iterator<T> changing(Iterator<T> iterator)
+	{
+		return new Iterator<T>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return iterator.hasNext();
+			}
+
+			@Override
+			public T next()
+			{
+				return iterator.next();
+			}
+
+			@Override
+			public void remove()
+			{
+				KVS.this.changed();
+				iterator.remove();
+			}
+		};
+	}
+
+	private void clearMap()
+	{
+		if(this.map().isEmpty()) return;
+		this.changed();
+		this.map().clear();
 	}
 
 	/**
@@ -957,27 +1897,17 @@ public class KVS
 	 */
 	public boolean exists(String ...keyPath)
 	{
-		KVS kvs = this;
-		Object obj;
-		int keyCount = keyPath.length-1;
-		int counter = 0;
-		for(String key : keyPath)
-		{
-			obj = kvs.map.get(key);
-			if(obj==null) return false;
-
-			if(counter<keyCount) // use this up until the second last key
-			{
-				if(!obj.getClass().equals(String.class)) // only continue if all keys except the second last key is a kvs
-					kvs = (KVS)obj;
-				else
-					return false;
-			}
-
-			counter++;
-		}
+		return keyPath.length==0 || this.getNative(keyPath)!=null;
+	}
 
-		return true;		
+	/**
+	 * The same as exists(String... keyPath)
+	 * @param path
+	 * @return 
+	 */
+	public boolean exists(KVSPath path)
+	{
+		return this.exists(path.keys);
 	}
 	
 	/**
@@ -986,7 +1916,7 @@ public class KVS
 	 */
 	public String[] keys()
 	{
-		Set<String> keySet = this.map.keySet();
+		Set<String> keySet = this.map().keySet();
 		return keySet.toArray(new String[keySet.size()]);
 	}
 	
@@ -998,20 +1928,73 @@ public class KVS
 	 */
 	public void merge(KVS kvs)
 	{
-		Set<Entry<String, Object>> entries = kvs.map.entrySet();
+		this.changed();
+		Set<Entry<String, Object>> entries = kvs.map().entrySet();
 		for(Entry<String, Object> entry : entries)
 		{
 			String key = entry.getKey();
-			Object currentValue = this.map.get(key);
+			Object currentValue = this.map().get(key);
 			Object value = entry.getValue();
 			if(value.getClass().equals(KVS.class) && currentValue!=null && currentValue.getClass().equals(KVS.class))
 				((KVS)currentValue).merge((KVS) value);
 			else
-				this.map.put(key, value);
+				this.map().put(key, value);
 		}
 	}
 	
 	
+	/**
+	 * Work out the changes that turn a into b, as a patch that apply() makes
+	 * to a or to a copy of it. The patch is a KVS itself, so it can be encoded
+	 * and sent like any other structure, see KVSPatch for its operations.
+	 * Sub-structures that a and b share, like the versions of a PersistentKVS
+	 * do, are not compared, so the work done depends on the size of the change
+	 * rather than the size of the structures.
+	 * @param a
+	 * @param b
+	 * @return The patch, which is empty if a and b encode to the same text
+	 */
+	public static KVS diff(KVS a, KVS b)
+	{
+		KVS patch = new KVS();
+		if(a!=b) KVSPatch.diff(a, b, new String[8], 0, patch);
+		return patch;
+	}
+
+	/**
+	 * Apply a patch made by diff(), setting, removing and reordering the
+	 * values at its key paths like set() and remove() do. Afterwards this
+	 * structure encodes to the same text as the b given to diff() did.
+	 * @param patch
+	 * @return This KVS. For chaining purposes.
+	 * @throws IllegalArgumentException If the patch holds an operation that is not known
+	 */
+	public KVS apply(KVS patch)
+	{
+		KVSPatch.apply(this, patch);
+		return this;
+	}
+
+	/**
+	 * Copy this structure, including its next auto incremented key.
+	 * @param deep If true then sub-structures are copied as well, otherwise they are shared
+	 * @return The copy
+	 */
+	KVS copy(boolean deep)
+	{
+		KVS copy = new KVS();
+		copy.autoKey = this.autoKey;
+		if(this.array()!=null) copy.map = new KVSArrayMap();
+		Object value;
+		for(Entry<String, Object> entry : this.map().entrySet())
+		{
+			value = entry.getValue();
+			if(deep && value instanceof KVS) value = ((KVS) value).copy(true);
+			copy.map.put(entry.getKey(), value);
+		}
+		return copy;
+	}
+
 	public static void trimArray(String[] items)
 	{
 		int s = items.length;
@@ -1080,34 +2063,3 @@ public class KVS
 		//*/
 	}
 }
-
-class KVSBufferIn
-{
-	BufferedReader reader;
-	char prevChar = 0;
-
-	public KVSBufferIn(InputStream in)
-	{
-		reader = new BufferedReader(new InputStreamReader(in));
-	}
-
-	public char next() throws IOException
-	{	
-		prevChar = (char) reader.read();
-		if(prevChar==-1 || prevChar==0xFFFF) throw new IOException("EOF");
-		return prevChar;
-	}
-	
-	public char prevChar()
-	{
-		return prevChar;
-	}
-
-	public char peek() throws IOException
-	{
-		reader.mark(2);
-		char result = (char) reader.read();
-		reader.reset();
-		return result;
-	}
-}
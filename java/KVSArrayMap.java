@@ -0,0 +1,314 @@
+package slite.lib.java;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The map of a structure whose keys are all auto incremented, like the list in
+ * car[[...][...]]. The values are kept in an array and the keys "0", "1", "2"
+ * are never stored, so a list costs no key string or hash entry per element,
+ * and an element is found by its index directly.
+ * <p>
+ * As soon as anything is done that a list can't hold, such as putting a named
+ * key, skipping an index or removing an element that isn't the last one, the
+ * elements are moved into a LinkedHashMap and from then on everything is
+ * handed to it. The structure behaves exactly the same either way.
+ * </p>
+ */
+final class KVSArrayMap extends AbstractMap<String, Object>
+{
+	private Object[] elements = new Object[8];
+	private int size = 0;
+	private Map<String, Object> map = null; // set once this is no longer a list
+	private boolean frozen = false;
+
+	/**
+	 * @return true while the keys are exactly 0 up to size-1
+	 */
+	boolean isArray()
+	{
+		return this.map==null;
+	}
+
+	/**
+	 * @return true if freeze() has been called
+	 */
+	boolean isFrozen()
+	{
+		return this.frozen;
+	}
+
+	/**
+	 * Makes a list immutable and trims its array. Must only be called while isArray() is true.
+	 */
+	void freeze()
+	{
+		if(this.elements.length!=this.size) this.elements = Arrays.copyOf(this.elements, this.size);
+		this.frozen = true;
+	}
+
+	/**
+	 * Must only be called while isArray() is true
+	 * @param index
+	 * @return The element at the index, which must be less than size()
+	 */
+	Object element(int index)
+	{
+		return this.elements[index];
+	}
+
+	/**
+	 * Appends the value under the key size(). Must only be called while isArray() is true.
+	 * @param value
+	 */
+	void add(Object value)
+	{
+		if(this.frozen) throw new UnsupportedOperationException();
+		if(this.size==this.elements.length) this.elements = Arrays.copyOf(this.elements, this.size * 2);
+		this.elements[this.size++] = value;
+	}
+
+	/**
+	 * Returns the index a key stands for without building any strings
+	 * @param key
+	 * @return The index, or -1 if the key is not the decimal text of an index
+	 */
+	static int index(Object key)
+	{
+		if(!(key instanceof String)) return -1;
+		String text = (String) key;
+		int length = text.length();
+		if(length==0 || length>9) return -1;
+		if(length>1 && text.charAt(0)=='0') return -1;
+
+		int index = 0;
+		char c;
+		for(int i=0;i<length;i++)
+		{
+			c = text.charAt(i);
+			if(c<'0' || c>'9') return -1;
+			index = index * 10 + (c - '0');
+		}
+		return index;
+	}
+
+	// Moves the elements into a LinkedHashMap, which from then on holds the structure
+	private Map<String, Object> toMap()
+	{
+		if(this.map==null)
+		{
+			Map<String, Object> map = new LinkedHashMap<>();
+			for(int i=0;i<this.size;i++) map.put(Integer.toString(i), this.elements[i]);
+			this.map = map;
+			this.elements = null;
+			this.size = 0;
+		}
+		return this.map;
+	}
+
+	@Override
+	public Object get(Object key)
+	{
+		if(this.map!=null) return this.map.get(key);
+		int index = index(key);
+		return index>=0 && index<this.size ? this.elements[index] : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		if(this.map!=null) return this.map.containsKey(key);
+		int index = index(key);
+		return index>=0 && index<this.size;
+	}
+
+	@Override
+	public Object put(String key, Object value)
+	{
+		if(this.frozen) throw new UnsupportedOperationException();
+		if(this.map==null)
+		{
+			int index = index(key);
+			if(index>=0 && index<this.size)
+			{
+				Object old = this.elements[index];
+				this.elements[index] = value;
+				return old;
+			}
+			if(index==this.size)
+			{
+				this.add(value);
+				return null;
+			}
+		}
+		return this.toMap().put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key)
+	{
+		if(this.frozen) throw new UnsupportedOperationException();
+		if(this.map==null)
+		{
+			int index = index(key);
+			if(index<0 || index>=this.size) return null;
+			if(index==this.size-1)
+			{
+				Object old = this.elements[index];
+				this.elements[--this.size] = null;
+				return old;
+			}
+		}
+		return this.toMap().remove(key);
+	}
+
+	@Override
+	public void clear()
+	{
+		if(this.frozen) throw new UnsupportedOperationException();
+		this.map = null;
+		this.elements = new Object[8];
+		this.size = 0;
+	}
+
+	@Override
+	public int size()
+	{
+		return this.map!=null ? this.map.size() : this.size;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return this.size()==0;
+	}
+
+	@Override
+	public Collection<Object> values()
+	{
+		// views that stay live when the list turns into a map, and read the array without building keys while it's a list
+		return new AbstractCollection<Object>()
+		{
+			@Override
+			public Iterator<Object> iterator()
+			{
+				if(KVSArrayMap.this.map!=null) return KVSArrayMap.this.map.values().iterator();
+				return new Elements<Object>()
+				{
+					@Override
+					public Object next()
+					{
+						return this.nextValue();
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return KVSArrayMap.this.size();
+			}
+
+			@Override
+			public void clear()
+			{
+				KVSArrayMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet()
+	{
+		return new AbstractSet<Entry<String, Object>>()
+		{
+			@Override
+			public Iterator<Entry<String, Object>> iterator()
+			{
+				if(KVSArrayMap.this.map!=null) return KVSArrayMap.this.map.entrySet().iterator();
+				return new Elements<Entry<String, Object>>()
+				{
+					@Override
+					public Entry<String, Object> next()
+					{
+						Object value = this.nextValue();
+						return new Element(Integer.toString(this.last), value);
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return KVSArrayMap.this.size();
+			}
+
+			@Override
+			public void clear()
+			{
+				KVSArrayMap.this.clear();
+			}
+		};
+	}
+
+	/**
+	 * Iterates over the elements of the list by index. Removing an element that
+	 * isn't the last one turns the list into a map, after which the rest are
+	 * read from the map by their keys.
+	 */
+	private abstract class Elements<T> implements Iterator<T>
+	{
+		private final int end = KVSArrayMap.this.size;
+		private int index = 0;
+		int last = -1; // the index of the element next() returned last, or -1 once it's removed
+
+		@Override
+		public boolean hasNext()
+		{
+			return this.index<this.end;
+		}
+
+		Object nextValue()
+		{
+			if(!this.hasNext()) throw new NoSuchElementException();
+			this.last = this.index++;
+			return KVSArrayMap.this.map!=null ? KVSArrayMap.this.map.get(Integer.toString(this.last)) : KVSArrayMap.this.elements[this.last];
+		}
+
+		@Override
+		public void remove()
+		{
+			if(this.last<0) throw new IllegalStateException();
+			KVSArrayMap.this.remove(Integer.toString(this.last));
+			this.last = -1;
+		}
+	}
+
+	/**
+	 * An entry of the list, setting its value sets the element
+	 */
+	private final class Element extends SimpleEntry<String, Object>
+	{
+		private static final long serialVersionUID = 1L;
+
+		Element(String key, Object value)
+		{
+			super(key, value);
+		}
+
+		@Override
+		public Object setValue(Object value)
+		{
+			KVSArrayMap.this.put(this.getKey(), value);
+			return super.setValue(value);
+		}
+	}
+}
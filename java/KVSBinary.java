@@ -0,0 +1,250 @@
+package slite.lib.java;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A binary value kept as raw bytes. It's created by KVS.setBytes(byte[], String...)
+ * and encodes to unpadded, URL safe Base64 (RFC 4648) only when it's written
+ * out. The encoders write it in pieces straight into their buffers, so a large
+ * value is never held as Base64 text.
+ * <p>
+ * This class also holds the Base64 decoding used by KVS.getBytes, which works
+ * the same on a decoded text value and never builds a copy of the text.
+ * </p>
+ */
+final class KVSBinary
+{
+	private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] DIGITS = new byte[128]; // the 6 bit value of each character, or -1
+
+	static
+	{
+		Arrays.fill(DIGITS, (byte) -1);
+		for(int i=0;i<ALPHABET.length;i++) DIGITS[ALPHABET[i]] = (byte) i;
+	}
+
+	private final byte[] bytes;
+
+	/**
+	 * @param bytes Not copied, so it must not be changed afterwards
+	 */
+	KVSBinary(byte[] bytes)
+	{
+		this.bytes = bytes;
+	}
+
+	int length()
+	{
+		return this.bytes.length;
+	}
+
+	/**
+	 * @return The bytes themselves, which must not be changed
+	 */
+	byte[] bytes()
+	{
+		return this.bytes;
+	}
+
+	/**
+	 * @return A copy of the bytes
+	 */
+	byte[] toBytes()
+	{
+		return this.bytes.clone();
+	}
+
+	/**
+	 * The number of Base64 characters that the bytes encode to
+	 */
+	int encodedLength()
+	{
+		return (this.bytes.length / 3) * 4 + (this.bytes.length % 3==0 ? 0 : this.bytes.length % 3 + 1);
+	}
+
+	/**
+	 * Encodes bytes from to to as Base64 into out
+	 * @param from The first byte to encode, a multiple of 3
+	 * @param to The byte to stop at, a multiple of 3 or the length
+	 * @param out Must have room for the characters
+	 * @param pos Where to start writing in out
+	 * @return The position in out after the last character written
+	 */
+	int encode(int from, int to, byte[] out, int pos)
+	{
+		byte[] bytes = this.bytes;
+		int i = from;
+		for(;i + 3<=to;i+=3)
+		{
+			int group = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+			out[pos++] = ALPHABET[group >>> 18];
+			out[pos++] = ALPHABET[(group >>> 12) & 0x3F];
+			out[pos++] = ALPHABET[(group >>> 6) & 0x3F];
+			out[pos++] = ALPHABET[group & 0x3F];
+		}
+		if(i<to) // the last 1 or 2 bytes, without padding
+		{
+			int group = (bytes[i] & 0xFF) << 16 | (i + 1<to ? (bytes[i + 1] & 0xFF) << 8 : 0);
+			out[pos++] = ALPHABET[group >>> 18];
+			out[pos++] = ALPHABET[(group >>> 12) & 0x3F];
+			if(i + 1<to) out[pos++] = ALPHABET[(group >>> 6) & 0x3F];
+		}
+		return pos;
+	}
+
+	/**
+	 * Appends the Base64 text to the buffer
+	 * @param buffer
+	 */
+	void appendTo(StringBuilder buffer)
+	{
+		byte[] chunk = new byte[Math.max(4, Math.min(KVSEncoder.BUFFER_SIZE, this.encodedLength()))];
+		int step = chunk.length / 4 * 3; // bytes that fill the chunk, in whole groups
+		buffer.ensureCapacity(buffer.length() + this.encodedLength());
+		for(int i=0;i<this.bytes.length;i+=step)
+		{
+			int count = this.encode(i, Math.min(i + step, this.bytes.length), chunk, 0);
+			for(int j=0;j<count;j++) buffer.append((char) chunk[j]);
+		}
+	}
+
+	/**
+	 * @return The Base64 text
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder buffer = new StringBuilder(this.encodedLength());
+		this.appendTo(buffer);
+		return buffer.toString();
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof KVSBinary && Arrays.equals(this.bytes, ((KVSBinary) obj).bytes);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Arrays.hashCode(this.bytes);
+	}
+
+	/**
+	 * The bytes of a value, decoding it if it's Base64 text
+	 * @param value
+	 * @return A new array, or null if the value is missing, a structure or not Base64
+	 */
+	static byte[] toBytes(Object value)
+	{
+		if(value instanceof KVSBinary) return ((KVSBinary) value).toBytes();
+		if(value==null || value instanceof KVS) return null;
+
+		CharSequence text = value instanceof CharSequence ? (CharSequence) value : value.toString();
+		int length = decodedLength(text);
+		if(length<0) return null;
+		byte[] bytes = new byte[length];
+		decode(text, ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	/**
+	 * Puts the bytes of a value into the target, decoding it if it's Base64 text
+	 * @param value
+	 * @param target
+	 * @return The number of bytes put, or -1 if the value is missing, a structure or not Base64
+	 * @throws BufferOverflowException If the bytes don't fit into the target, nothing is put then
+	 */
+	static int copyTo(Object value, ByteBuffer target)
+	{
+		if(value instanceof KVSBinary)
+		{
+			KVSBinary binary = (KVSBinary) value;
+			if(binary.bytes.length>target.remaining()) throw new BufferOverflowException();
+			target.put(binary.bytes);
+			return binary.bytes.length;
+		}
+		if(value==null || value instanceof KVS) return -1;
+		return decode(value instanceof CharSequence ? (CharSequence) value : value.toString(), target);
+	}
+
+	/**
+	 * @return The 6 bit value of a URL safe Base64 character, or -1 if it isn't one
+	 */
+	static int digit(int c)
+	{
+		return c>=0 && c<128 ? DIGITS[c] : -1;
+	}
+
+	/**
+	 * The number of bytes that the Base64 text decodes to. Whitespace around the
+	 * text is ignored like get() trims it. Padding at the end is not written by
+	 * the encoders, but it is accepted.
+	 * @param text
+	 * @return -1 if the text is not URL safe Base64
+	 */
+	static int decodedLength(CharSequence text)
+	{
+		int start = start(text);
+		int length = end(text, start) - start;
+		if(length % 4==1) return -1;
+		for(int i=start;i<start + length;i++)
+		{
+			char c = text.charAt(i);
+			if(c>=128 || DIGITS[c]<0) return -1;
+		}
+		return length / 4 * 3 + (length % 4==0 ? 0 : length % 4 - 1);
+	}
+
+	/**
+	 * Decodes Base64 text into the target without building any copy of it
+	 * @param text
+	 * @param target
+	 * @return The number of bytes written, or -1 if the text is not Base64, see decodedLength
+	 * @throws BufferOverflowException If the bytes don't fit into the target, nothing is written then
+	 */
+	static int decode(CharSequence text, ByteBuffer target)
+	{
+		int decoded = decodedLength(text);
+		if(decoded<0) return -1;
+		if(decoded>target.remaining()) throw new BufferOverflowException();
+
+		int i = start(text);
+		int end = end(text, i);
+		for(;i + 4<=end;i+=4)
+		{
+			int group = DIGITS[text.charAt(i)] << 18 | DIGITS[text.charAt(i + 1)] << 12 | DIGITS[text.charAt(i + 2)] << 6 | DIGITS[text.charAt(i + 3)];
+			target.put((byte) (group >>> 16));
+			target.put((byte) (group >>> 8));
+			target.put((byte) group);
+		}
+		if(i<end) // 2 or 3 characters left
+		{
+			int group = DIGITS[text.charAt(i)] << 18 | DIGITS[text.charAt(i + 1)] << 12 | (i + 2<end ? DIGITS[text.charAt(i + 2)] << 6 : 0);
+			target.put((byte) (group >>> 16));
+			if(i + 2<end) target.put((byte) (group >>> 8));
+		}
+		return decoded;
+	}
+
+	// The first character that is not whitespace
+	private static int start(CharSequence text)
+	{
+		int start = 0;
+		while(start<text.length() && text.charAt(start)<=' ') start++;
+		return start;
+	}
+
+	// After the last character that is neither whitespace nor padding
+	private static int end(CharSequence text, int start)
+	{
+		int end = text.length();
+		while(end>start && text.charAt(end - 1)<=' ') end--;
+		for(int i=0;i<2 && end>start && text.charAt(end - 1)=='=';i++) end--;
+		return end;
+	}
+}
@@ -0,0 +1,86 @@
+package slite.lib.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes KVS straight into objects of a class and encodes them straight to
+ * KVS, without building a KVS structure in between. Codecs are generated by
+ * KVSProcessor for classes marked with KVSObject, and each one has a single
+ * INSTANCE:
+ * <pre>
+ * Person person = PersonKVSCodec.INSTANCE.fromString(text);
+ * PersonKVSCodec.INSTANCE.toStream(person, out, false);
+ * </pre>
+ * @param <T> The class
+ */
+public interface KVSCodec<T>
+{
+	/**
+	 * Reads pairs into a new object up to the end of the current structure, or
+	 * the end of the input at the top level. Keys the class doesn't have are skipped.
+	 * @param reader
+	 * @return
+	 * @throws IOException If the underlying stream fails
+	 */
+	T decode(KVSReader reader) throws IOException;
+
+	/**
+	 * Writes the fields of the object as pairs of the current structure. Null
+	 * fields are left out.
+	 * @param object
+	 * @param writer
+	 * @throws IOException If the underlying stream fails
+	 */
+	void encode(T object, KVSWriter writer) throws IOException;
+
+	/**
+	 * @param text
+	 * @return A new object with the data decoded from the text
+	 * @throws IOException
+	 */
+	default T fromString(String text) throws IOException
+	{
+		return this.decode(new KVSReader(text));
+	}
+
+	/**
+	 * @param stream Read to the end, see KVSReader(InputStream)
+	 * @return A new object with the data decoded from the stream
+	 * @throws IOException
+	 */
+	default T fromStream(InputStream stream) throws IOException
+	{
+		return this.decode(new KVSReader(stream));
+	}
+
+	/**
+	 * @param object
+	 * @param pretty See KVS.toString(boolean, String)
+	 * @return The object encoded
+	 * @throws IOException
+	 */
+	default String toString(T object, boolean pretty) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		this.toStream(object, out, pretty);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Encodes the object to the stream, the same as toStream does for a KVS
+	 * @param object
+	 * @param out
+	 * @param pretty See KVS.toString(boolean, String)
+	 * @throws IOException
+	 */
+	default void toStream(T object, OutputStream out, boolean pretty) throws IOException
+	{
+		KVSWriter writer = new KVSWriter(out, pretty);
+		this.encode(object, writer);
+		writer.flush();
+	}
+}
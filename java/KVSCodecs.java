@@ -0,0 +1,123 @@
+package slite.lib.java;
+
+/**
+ * The conversions from text values that the codecs generated by KVSProcessor
+ * use. Like the numeric getters of KVS they never throw, but return the default
+ * value when the text can't be converted.
+ */
+public final class KVSCodecs
+{
+	private KVSCodecs()
+	{
+
+	}
+
+	public static long toLong(String value, long defaultValue)
+	{
+		return KVSNumber.toLong(value, Long.MIN_VALUE, Long.MAX_VALUE, defaultValue);
+	}
+
+	public static Long toLong(String value, Long defaultValue)
+	{
+		// every long is a valid result, so a 0 is parsed again with another default to tell it apart from a failure
+		long parsed = KVSNumber.parseLong(value, Long.MIN_VALUE, Long.MAX_VALUE, 0);
+		if(parsed==0 && KVSNumber.parseLong(value, Long.MIN_VALUE, Long.MAX_VALUE, 1)!=0) return defaultValue;
+		return Long.valueOf(parsed);
+	}
+
+	public static int toInt(String value, int defaultValue)
+	{
+		return (int) KVSNumber.toLong(value, Integer.MIN_VALUE, Integer.MAX_VALUE, defaultValue);
+	}
+
+	public static Integer toInt(String value, Integer defaultValue)
+	{
+		long parsed = KVSNumber.toLong(value, Integer.MIN_VALUE - 1L, Integer.MAX_VALUE, Integer.MIN_VALUE - 1L);
+		return parsed<Integer.MIN_VALUE ? defaultValue : Integer.valueOf((int) parsed);
+	}
+
+	public static short toShort(String value, short defaultValue)
+	{
+		return (short) KVSNumber.toLong(value, Short.MIN_VALUE, Short.MAX_VALUE, defaultValue);
+	}
+
+	public static Short toShort(String value, Short defaultValue)
+	{
+		long parsed = KVSNumber.toLong(value, Short.MIN_VALUE - 1L, Short.MAX_VALUE, Short.MIN_VALUE - 1L);
+		return parsed<Short.MIN_VALUE ? defaultValue : Short.valueOf((short) parsed);
+	}
+
+	public static byte toByte(String value, byte defaultValue)
+	{
+		return (byte) KVSNumber.toLong(value, Byte.MIN_VALUE, Byte.MAX_VALUE, defaultValue);
+	}
+
+	public static Byte toByte(String value, Byte defaultValue)
+	{
+		long parsed = KVSNumber.toLong(value, Byte.MIN_VALUE - 1L, Byte.MAX_VALUE, Byte.MIN_VALUE - 1L);
+		return parsed<Byte.MIN_VALUE ? defaultValue : Byte.valueOf((byte) parsed);
+	}
+
+	public static double toDouble(String value, double defaultValue)
+	{
+		return KVSNumber.toDouble(value, defaultValue);
+	}
+
+	public static Double toDouble(String value, Double defaultValue)
+	{
+		double parsed = KVSNumber.toDouble(value, Double.NaN);
+		return Double.isNaN(parsed) && !value.trim().equals("NaN") ? defaultValue : Double.valueOf(parsed);
+	}
+
+	public static float toFloat(String value, float defaultValue)
+	{
+		return KVSNumber.toFloat(value, defaultValue);
+	}
+
+	public static Float toFloat(String value, Float defaultValue)
+	{
+		float parsed = KVSNumber.toFloat(value, Float.NaN);
+		return Float.isNaN(parsed) && !value.trim().equals("NaN") ? defaultValue : Float.valueOf(parsed);
+	}
+
+	/**
+	 * @return true or false for the text true or false in any case, otherwise the default value
+	 */
+	public static boolean toBoolean(String value, boolean defaultValue)
+	{
+		String text = value.trim();
+		if(text.equalsIgnoreCase("true")) return true;
+		if(text.equalsIgnoreCase("false")) return false;
+		return defaultValue;
+	}
+
+	public static Boolean toBoolean(String value, Boolean defaultValue)
+	{
+		String text = value.trim();
+		if(text.equalsIgnoreCase("true")) return Boolean.TRUE;
+		if(text.equalsIgnoreCase("false")) return Boolean.FALSE;
+		return defaultValue;
+	}
+
+	/**
+	 * @return The first character, or the default value if the text is empty
+	 */
+	public static char toChar(String value, char defaultValue)
+	{
+		return value.isEmpty() ? defaultValue : value.charAt(0);
+	}
+
+	public static Character toChar(String value, Character defaultValue)
+	{
+		return value.isEmpty() ? defaultValue : Character.valueOf(value.charAt(0));
+	}
+
+	/**
+	 * @return The bytes of unpadded URL safe Base64 text, see KVS.getBytes, or the default value
+	 */
+	public static byte[] toBytes(String value, byte[] defaultValue)
+	{
+		byte[] bytes = KVSBinary.toBytes(value);
+		return bytes==null ? defaultValue : bytes;
+	}
+}
@@ -0,0 +1,441 @@
+package slite.lib.java;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A collection of KVS records by id, with indexes on the values at chosen key
+ * paths, so that records can be looked up without scanning them all:
+ * <pre>
+ * KVSCollection cars = new KVSCollection();
+ * cars.addHashIndex("type");
+ * cars.addNumericIndex("weight");
+ * cars.addSortedIndex("owner", "name");
+ * cars.put("1", car);
+ * List&lt;KVS&gt; vans = cars.find("van", "type");
+ * List&lt;KVS&gt; light = cars.range(0, 1500, "weight");
+ * List&lt;KVS&gt; smiths = cars.prefix("Smith", "owner", "name");
+ * </pre>
+ * There are three kinds of index:
+ * <ul>
+ *	<li>A hash index finds the records with a value in O(1)</li>
+ *	<li>A sorted index orders the values as text, and finds the records with a
+ *	value, a value in a range or a value starting with a prefix in O(log n)</li>
+ *	<li>A numeric index orders the values as numbers, and finds the records with a
+ *	number or a number in a range in O(log n). Values that aren't numbers are
+ *	left out of it.</li>
+ * </ul>
+ * Values are taken like get() and getDouble() take them, and records that have
+ * no primitive value at the key path are left out of the index. The indexes are
+ * updated whenever a record is put or removed. A record that is changed in place
+ * has to be put again, or given to update(), to bring the indexes up to date.
+ * <p>
+ * Records are returned in the order of the index, and records with the same
+ * value in the order they were indexed. A collection is not thread safe.
+ * </p>
+ */
+public class KVSCollection
+{
+	/**
+	 * The ids of the records by their value at one key path
+	 */
+	private static final class Index<V>
+	{
+		final Map<V, Set<String>> ids;
+		final Map<String, V> values = new HashMap<>(); // what every record is indexed by, so that it can be found again after the record has changed
+
+		Index(Map<V, Set<String>> ids)
+		{
+			this.ids = ids;
+		}
+
+		void add(String id, V value)
+		{
+			if(value==null) return;
+			this.values.put(id, value);
+			this.ids.computeIfAbsent(value, v -> new LinkedHashSet<>()).add(id);
+		}
+
+		void remove(String id)
+		{
+			V value = this.values.remove(id);
+			if(value==null) return;
+			Set<String> ids = this.ids.get(value);
+			ids.remove(id);
+			if(ids.isEmpty()) this.ids.remove(value);
+		}
+	}
+
+	private final Map<String, KVS> records = new LinkedHashMap<>();
+	private final Map<KVSPath, Index<String>> hashIndexes = new HashMap<>();
+	private final Map<KVSPath, Index<String>> sortedIndexes = new HashMap<>();
+	private final Map<KVSPath, Index<Double>> numericIndexes = new HashMap<>();
+
+	/**
+	 * Index the text values at the key path in a hash index. The records already
+	 * in the collection are indexed straight away.
+	 * @param keys The key path
+	 * @return This collection. For chaining purposes.
+	 */
+	public KVSCollection addHashIndex(String... keys)
+	{
+		return this.addHashIndex(new KVSPath(keys));
+	}
+
+	/**
+	 * The same as addHashIndex(String... keys)
+	 * @param path The key path
+	 * @return This collection. For chaining purposes.
+	 */
+	public KVSCollection addHashIndex(KVSPath path)
+	{
+		if(!this.hashIndexes.containsKey(path)) this.hashIndexes.put(path, this.build(path, new Index<>(new HashMap<>())));
+		return this;
+	}
+
+	/**
+	 * Index the text values at the key path in a sorted index, for range and
+	 * prefix lookups. The records already in the collection are indexed straight away.
+	 * @param keys The key path
+	 * @return This collection. For chaining purposes.
+	 */
+	public KVSCollection addSortedIndex(String... keys)
+	{
+		return this.addSortedIndex(new KVSPath(keys));
+	}
+
+	/**
+	 * The same as addSortedIndex(String... keys)
+	 * @param path The key path
+	 * @return This collection. For chaining purposes.
+	 */
+	public KVSCollection addSortedIndex(KVSPath path)
+	{
+		if(!this.sortedIndexes.containsKey(path)) this.sortedIndexes.put(path, this.build(path, new Index<>(new TreeMap<>())));
+		return this;
+	}
+
+	/**
+	 * Index the numbers at the key path in a sorted index, for range lookups.
+	 * The records already in the collection are indexed straight away.
+	 * @param keys The key path
+	 * @return This collection. For chaining purposes.
+	 */
+	public KVSCollection addNumericIndex(String... keys)
+	{
+		return this.addNumericIndex(new KVSPath(keys));
+	}
+
+	/**
+	 * The same as addNumericIndex(String... keys)
+	 * @param path The key path
+	 * @return This collection. For chaining purposes.
+	 */
+	public KVSCollection addNumericIndex(KVSPath path)
+	{
+		if(!this.numericIndexes.containsKey(path))
+		{
+			Index<Double> index = new Index<>(new TreeMap<>());
+			for(Map.Entry<String, KVS> entry : this.records.entrySet()) index.add(entry.getKey(), number(entry.getValue(), path));
+			this.numericIndexes.put(path, index);
+		}
+		return this;
+	}
+
+	/**
+	 * Add a record, replacing any record with the same id
+	 * @param id
+	 * @param record
+	 * @return The record that was replaced, or null if there was none
+	 */
+	public KVS put(String id, KVS record)
+	{
+		KVS previous = this.records.put(id, record);
+		if(previous!=null) this.unindex(id);
+		this.index(id, record);
+		return previous;
+	}
+
+	/**
+	 * Index a record again after it has been changed in place
+	 * @param id
+	 */
+	public void update(String id)
+	{
+		KVS record = this.records.get(id);
+		if(record==null) return;
+		this.unindex(id);
+		this.index(id, record);
+	}
+
+	/**
+	 * @param id
+	 * @return The record that was removed, or null if there was none
+	 */
+	public KVS remove(String id)
+	{
+		KVS record = this.records.remove(id);
+		if(record!=null) this.unindex(id);
+		return record;
+	}
+
+	/**
+	 * @param id
+	 * @return The record, or null if there is none with the id
+	 */
+	public KVS get(String id)
+	{
+		return this.records.get(id);
+	}
+
+	public boolean contains(String id)
+	{
+		return this.records.containsKey(id);
+	}
+
+	public int size()
+	{
+		return this.records.size();
+	}
+
+	public boolean isEmpty()
+	{
+		return this.records.isEmpty();
+	}
+
+	/**
+	 * @return The ids in the order they were first put, this is a live view
+	 */
+	public Set<String> ids()
+	{
+		return Collections.unmodifiableSet(this.records.keySet());
+	}
+
+	/**
+	 * @return The records in the order they were first put, this is a live view
+	 */
+	public Collection<KVS> records()
+	{
+		return Collections.unmodifiableCollection(this.records.values());
+	}
+
+	/**
+	 * Find the records with the value at the key path, using a hash index or a sorted index
+	 * @param value
+	 * @param keys The key path
+	 * @return The records, or an empty list if there are none
+	 * @throws IllegalArgumentException If the key path has no hash or sorted index
+	 */
+	public List<KVS> find(String value, String... keys)
+	{
+		return this.find(value, new KVSPath(keys));
+	}
+
+	/**
+	 * The same as find(String value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The records, or an empty list if there are none
+	 */
+	public List<KVS> find(String value, KVSPath path)
+	{
+		Index<String> index = this.hashIndexes.get(path);
+		if(index==null) index = this.sortedIndexes.get(path);
+		if(index==null) throw new IllegalArgumentException("There is no hash or sorted index on " + path);
+		return this.lookup(index.ids.get(value.trim()));
+	}
+
+	/**
+	 * Find the records with the number at the key path, using a numeric index
+	 * @param value
+	 * @param keys The key path
+	 * @return The records, or an empty list if there are none
+	 * @throws IllegalArgumentException If the key path has no numeric index
+	 */
+	public List<KVS> find(double value, String... keys)
+	{
+		return this.find(value, new KVSPath(keys));
+	}
+
+	/**
+	 * The same as find(double value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The records, or an empty list if there are none
+	 */
+	public List<KVS> find(double value, KVSPath path)
+	{
+		return this.lookup(this.numericIndex(path).ids.get(normalize(value)));
+	}
+
+	/**
+	 * Find the records with a value at the key path between from and to, both
+	 * included, in the order of a sorted index
+	 * @param from The lowest value, or null for no lower bound
+	 * @param to The highest value, or null for no upper bound
+	 * @param keys The key path
+	 * @return The records, or an empty list if there are none
+	 * @throws IllegalArgumentException If the key path has no sorted index
+	 */
+	public List<KVS> range(String from, String to, String... keys)
+	{
+		return this.range(from, to, new KVSPath(keys));
+	}
+
+	/**
+	 * The same as range(String from, String to, String... keys)
+	 * @param from The lowest value, or null for no lower bound
+	 * @param to The highest value, or null for no upper bound
+	 * @param path The key path
+	 * @return The records, or an empty list if there are none
+	 */
+	public List<KVS> range(String from, String to, KVSPath path)
+	{
+		NavigableMap<String, Set<String>> ids = this.sortedIndex(path);
+		if(from!=null && to!=null && from.compareTo(to)>0) return new ArrayList<>();
+		if(from!=null) ids = ids.tailMap(from, true);
+		if(to!=null) ids = ids.headMap(to, true);
+		return this.lookup(ids.values());
+	}
+
+	/**
+	 * Find the records with a number at the key path between from and to, both
+	 * included, in the order of a numeric index
+	 * @param from The lowest number, or Double.NEGATIVE_INFINITY for no lower bound
+	 * @param to The highest number, or Double.POSITIVE_INFINITY for no upper bound
+	 * @param keys The key path
+	 * @return The records, or an empty list if there are none
+	 * @throws IllegalArgumentException If the key path has no numeric index
+	 */
+	public List<KVS> range(double from, double to, String... keys)
+	{
+		return this.range(from, to, new KVSPath(keys));
+	}
+
+	/**
+	 * The same as range(double from, double to, String... keys)
+	 * @param from The lowest number, or Double.NEGATIVE_INFINITY for no lower bound
+	 * @param to The highest number, or Double.POSITIVE_INFINITY for no upper bound
+	 * @param path The key path
+	 * @return The records, or an empty list if there are none
+	 */
+	public List<KVS> range(double from, double to, KVSPath path)
+	{
+		NavigableMap<Double, Set<String>> ids = (NavigableMap<Double, Set<String>>) this.numericIndex(path).ids;
+		if(!(from<=to)) return new ArrayList<>(); // also when either is NaN
+		return this.lookup(ids.subMap(normalize(from), true, normalize(to), true).values());
+	}
+
+	/**
+	 * Find the records with a value at the key path that starts with the prefix,
+	 * in the order of a sorted index
+	 * @param prefix
+	 * @param keys The key path
+	 * @return The records, or an empty list if there are none
+	 * @throws IllegalArgumentException If the key path has no sorted index
+	 */
+	public List<KVS> prefix(String prefix, String... keys)
+	{
+		return this.prefix(prefix, new KVSPath(keys));
+	}
+
+	/**
+	 * The same as prefix(String prefix, String... keys)
+	 * @param prefix
+	 * @param path The key path
+	 * @return The records, or an empty list if there are none
+	 */
+	public List<KVS> prefix(String prefix, KVSPath path)
+	{
+		List<Set<String>> matches = new ArrayList<>();
+		for(Map.Entry<String, Set<String>> entry : this.sortedIndex(path).tailMap(prefix, true).entrySet())
+		{
+			if(!entry.getKey().startsWith(prefix)) break; // the values with the prefix are all next to each other
+			matches.add(entry.getValue());
+		}
+		return this.lookup(matches);
+	}
+
+	private void index(String id, KVS record)
+	{
+		for(Map.Entry<KVSPath, Index<String>> entry : this.hashIndexes.entrySet()) entry.getValue().add(id, text(record, entry.getKey()));
+		for(Map.Entry<KVSPath, Index<String>> entry : this.sortedIndexes.entrySet()) entry.getValue().add(id, text(record, entry.getKey()));
+		for(Map.Entry<KVSPath, Index<Double>> entry : this.numericIndexes.entrySet()) entry.getValue().add(id, number(record, entry.getKey()));
+	}
+
+	private void unindex(String id)
+	{
+		for(Index<String> index : this.hashIndexes.values()) index.remove(id);
+		for(Index<String> index : this.sortedIndexes.values()) index.remove(id);
+		for(Index<Double> index : this.numericIndexes.values()) index.remove(id);
+	}
+
+	private Index<String> build(KVSPath path, Index<String> index)
+	{
+		for(Map.Entry<String, KVS> entry : this.records.entrySet()) index.add(entry.getKey(), text(entry.getValue(), path));
+		return index;
+	}
+
+	private NavigableMap<String, Set<String>> sortedIndex(KVSPath path)
+	{
+		Index<String> index = this.sortedIndexes.get(path);
+		if(index==null) throw new IllegalArgumentException("There is no sorted index on " + path);
+		return (NavigableMap<String, Set<String>>) index.ids;
+	}
+
+	private Index<Double> numericIndex(KVSPath path)
+	{
+		Index<Double> index = this.numericIndexes.get(path);
+		if(index==null) throw new IllegalArgumentException("There is no numeric index on " + path);
+		return index;
+	}
+
+	private List<KVS> lookup(Set<String> ids)
+	{
+		if(ids==null) return new ArrayList<>();
+		List<KVS> records = new ArrayList<>(ids.size());
+		for(String id : ids) records.add(this.records.get(id));
+		return records;
+	}
+
+	private List<KVS> lookup(Collection<Set<String>> ids)
+	{
+		List<KVS> records = new ArrayList<>();
+		for(Set<String> set : ids)
+			for(String id : set) records.add(this.records.get(id));
+		return records;
+	}
+
+	/**
+	 * @return The value like get() gives it, or null if there is no primitive value at the path
+	 */
+	private static String text(KVS record, KVSPath path)
+	{
+		Object value = record.getNative(path);
+		return value==null || value instanceof KVS ? null : value.toString().trim();
+	}
+
+	/**
+	 * @return The value like getDouble() gives it, or null if it's not a number
+	 */
+	private static Double number(KVS record, KVSPath path)
+	{
+		double value = KVSNumber.toDouble(record.getNative(path), Double.NaN);
+		return Double.isNaN(value) ? null : normalize(value);
+	}
+
+	// -0.0 and 0.0 are the same number, but not the same Double
+	private static Double normalize(double value)
+	{
+		return value==0 ? 0.0 : value;
+	}
+}
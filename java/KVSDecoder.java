@@ -0,0 +1,471 @@
+package slite.lib.java;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte level KVS decoder. Reads UTF-8 bytes from a reusable buffer and only
+ * decodes to a String once a complete key or primitive value has been found.
+ * The ;; escape is resolved by looking ahead inside the buffer, so no mark/reset
+ * is needed.
+ */
+class KVSDecoder
+{
+	static final int BUFFER_SIZE = 8192;
+
+	private final InputStream in;
+	protected ByteBuffer buf;
+	protected int pos = 0;
+	protected int limit = 0;
+	protected long base = 0; // the position in the input of the first byte in buf
+	private byte prev = 0;
+
+	// If true sub-structures are skipped and only their byte ranges recorded, see isLazy()
+	boolean lazy = false;
+
+	// Optional tables that repeated keys and values are looked up in instead of being decoded again
+	KVSKeyTable keys = null;
+	KVSKeyTable values = null;
+
+	// Only used when a token crosses a buffer refill or contains an escaped ;
+	private byte[] scratch = new byte[64];
+	private int scratchLen = 0;
+
+	/**
+	 * Decode from a stream, reading it in chunks of BUFFER_SIZE bytes into a reused buffer.
+	 * @param in
+	 */
+	KVSDecoder(InputStream in)
+	{
+		this.in = in;
+		this.buf = ByteBuffer.wrap(new byte[BUFFER_SIZE]);
+	}
+
+	/**
+	 * Decode directly from the given bytes without copying them.
+	 * @param data
+	 */
+	KVSDecoder(byte[] data)
+	{
+		this(data, 0, data.length);
+	}
+
+	KVSDecoder(byte[] data, int offset, int length)
+	{
+		this(ByteBuffer.wrap(data), offset, offset + length);
+	}
+
+	/**
+	 * Decode directly from the bytes between start and end in the given buffer
+	 * without copying them. The position and limit of the buffer are ignored.
+	 * @param buf
+	 * @param start
+	 * @param end
+	 */
+	KVSDecoder(ByteBuffer buf, int start, int end)
+	{
+		this.in = null;
+		this.buf = buf;
+		this.pos = start;
+		this.limit = end;
+		this.base = -start;
+	}
+
+	/**
+	 * Load more bytes into the buffer. On return pos points to the first new byte.
+	 * @return false if there is nothing more to read
+	 * @throws IOException
+	 */
+	protected boolean fill() throws IOException
+	{
+		if(in==null) return false;
+
+		byte[] array = buf.array();
+		int read;
+		do { read = in.read(array, 0, array.length); } while(read==0);
+		if(read<0) return false;
+
+		base += limit;
+		pos = 0;
+		limit = read;
+		return true;
+	}
+
+	/**
+	 * @return The number of bytes of the input that have been consumed so far
+	 */
+	long position()
+	{
+		return base + pos;
+	}
+
+	/**
+	 * Returns true if sub-structures should be skipped with skipStructure() and
+	 * decoded later. This is only possible when the whole input stays in the buffer.
+	 * @return
+	 */
+	boolean isLazy()
+	{
+		return lazy && in==null;
+	}
+
+	/**
+	 * The last terminator read, '=' if the value that follows is a primitive
+	 * and '[' if it's a structure.
+	 * @return
+	 */
+	byte prev()
+	{
+		return prev;
+	}
+
+	/**
+	 * Reads the next byte.
+	 * @return The byte as an unsigned value
+	 * @throws IOException EOFException when the end of the input has been reached
+	 */
+	int next() throws IOException
+	{
+		if(pos==limit && !fill()) throw new EOFException();
+		return buf.get(pos++) & 0xFF;
+	}
+
+	/**
+	 * Reads the next key. Leading whitespace is skipped and the key is trimmed.
+	 * Any metadata (starting with ~) is skipped. An empty string is returned for
+	 * null keys.
+	 * @return The key, or null if the end of the current structure has been reached.
+	 * @throws IOException EOFException when the end of the input has been reached
+	 */
+	String readKey() throws IOException
+	{
+		int b;
+		do { b = this.next(); } while(b==' ' || b=='\n' || b=='\r' || b=='\t');
+
+		if(b==']') return null;
+		if(b=='[' || b=='=')
+		{
+			prev = (byte) b;
+			return "";
+		}
+		if(b=='~')
+		{
+			this.skipMeta();
+			return "";
+		}
+
+		int start = pos-1;
+		boolean scratched = false;
+		scratchLen = 0;
+		while(true)
+		{
+			if(pos==limit)
+			{
+				this.appendScratch(start, pos);
+				scratched = true;
+				if(!this.fill()) throw new EOFException();
+				start = pos;
+			}
+
+			b = buf.get(pos++);
+			if(b==']') // this is the end of the current structure, so the key is discarded
+			{
+				return null;
+			}
+			else if(b=='[' || b=='=' || b=='~')
+			{
+				int end = pos-1;
+				if(scratched)
+				{
+					this.appendScratch(start, end);
+					start = 0;
+					end = scratchLen;
+				}
+				String key = scratched ? this.trimmed(scratch, start, end) : this.trimmed(start, end);
+				if(b=='~') this.skipMeta();
+				else prev = (byte) b;
+
+				return key;
+			}
+		}
+	}
+
+	private void skipMeta() throws IOException
+	{
+		int b;
+		do { b = this.next(); } while(b!='[' && b!='='); // Reading through meta data (future protocol)
+		prev = (byte) b;
+	}
+
+	/**
+	 * Reads a primitive value up to the terminating ; and resolves any ;; escapes.
+	 * @return The value
+	 * @throws IOException EOFException if the input ended before the value was terminated
+	 */
+	String readPrimitive() throws IOException
+	{
+		int start = pos;
+		int end;
+		boolean scratched = false;
+		scratchLen = 0;
+		while(true)
+		{
+			if(pos==limit)
+			{
+				this.appendScratch(start, pos);
+				scratched = true;
+				if(!this.fill()) throw new EOFException();
+				start = pos;
+			}
+
+			if(buf.get(pos++)==';')
+			{
+				end = pos-1;
+				if(pos==limit) // need to look past the end of the buffer to check for an escape
+				{
+					this.appendScratch(start, end);
+					scratched = true;
+					boolean more = this.fill();
+					start = end = pos;
+					if(!more) break;
+				}
+
+				if(buf.get(pos)!=';') break;
+
+				// escaped ;, keep one of them
+				this.appendScratch(start, end+1);
+				scratched = true;
+				pos++;
+				start = pos;
+			}
+		}
+
+		if(!scratched) return this.string(start, end, values);
+
+		this.appendScratch(start, end);
+		return this.string(scratch, 0, scratchLen, values);
+	}
+
+	/**
+	 * Reads a primitive value up to the terminating ; like readPrimitive(), but
+	 * decodes it as Base64 straight into the target instead of building a String,
+	 * accepting exactly the text KVSBinary.decode() accepts. The value is read to
+	 * its end whatever it holds.
+	 * @param target The bytes are put at its position, which is moved past them
+	 * @return The number of bytes put, or -1 if the value is not Base64
+	 * @throws BufferOverflowException If the bytes don't fit into the target, its position is left where it was then
+	 * @throws IOException EOFException if the input ended before the value was terminated
+	 */
+	int readBinary(ByteBuffer target) throws IOException
+	{
+		int mark = target.position();
+		int phase = 0; // 0 before the digits, 1 in the digits, 2 in the padding, 3 in the whitespace after
+		int padding = 0;
+		int group = 0;
+		int count = 0; // the digits in the group
+		int put = 0;
+		boolean valid = true;
+		boolean overflow = false;
+		int b;
+		try
+		{
+			while(true)
+			{
+				b = this.next();
+				if(b==';')
+				{
+					if(pos==limit && !this.fill()) break;
+					if(buf.get(pos)!=';') break;
+					pos++; // an escaped ; is never Base64
+					valid = false;
+				}
+				else if(!valid)
+					continue;
+				else if(b<=' ')
+				{
+					if(phase!=0) phase = 3;
+				}
+				else if(b=='=' && phase!=3 && padding<2)
+				{
+					phase = 2;
+					padding++;
+				}
+				else if(phase<=1 && KVSBinary.digit(b)>=0)
+				{
+					phase = 1;
+					group = group << 6 | KVSBinary.digit(b);
+					if(++count==4)
+					{
+						if(target.remaining()<3)
+							overflow = true;
+						else if(!overflow)
+						{
+							target.put((byte) (group >>> 16));
+							target.put((byte) (group >>> 8));
+							target.put((byte) group);
+						}
+						put += 3;
+						group = 0;
+						count = 0;
+					}
+				}
+				else
+					valid = false;
+			}
+		}
+		catch(EOFException e)
+		{
+			target.position(mark);
+			throw e;
+		}
+
+		if(!valid || count==1)
+		{
+			target.position(mark);
+			return -1;
+		}
+		if(count>1) // 2 or 3 digits left, which hold 1 or 2 bytes
+		{
+			if(overflow || target.remaining()<count - 1)
+				overflow = true;
+			else if(count==2)
+				target.put((byte) (group >>> 4));
+			else
+			{
+				target.put((byte) (group >>> 10));
+				target.put((byte) (group >>> 2));
+			}
+			put += count - 1;
+		}
+		if(overflow)
+		{
+			target.position(mark);
+			throw new BufferOverflowException();
+		}
+		return put;
+	}
+
+	/**
+	 * Skips over the structure that was just opened up to and including its
+	 * closing ], without decoding anything. If the input ends first then it
+	 * stops at the end of the input.
+	 * @return false if the input ended before the structure was closed
+	 * @throws IOException
+	 */
+	boolean skipStructure() throws IOException
+	{
+		int depth = 1;
+		int b;
+		try
+		{
+			while(true)
+			{
+				b = this.next();
+				if(b==']')
+				{
+					if(--depth==0) return true;
+				}
+				else if(b=='[')
+					depth++;
+				else if(b=='=')
+					this.skipPrimitive();
+				else if(b=='~')
+				{
+					this.skipMeta();
+					if(prev=='[') depth++;
+					else this.skipPrimitive();
+				}
+			}
+		}
+		catch(EOFException e)
+		{
+			return false; // the structure is cut short by the end of the input
+		}
+	}
+
+	/**
+	 * Skips over a primitive value up to and including its terminating ;
+	 * @throws IOException EOFException if the input ended before the value was terminated
+	 */
+	void skipPrimitive() throws IOException
+	{
+		while(true)
+		{
+			if(this.next()==';')
+			{
+				if(pos==limit && !this.fill()) return;
+				if(buf.get(pos)!=';') return;
+				pos++;
+			}
+		}
+	}
+
+	private void appendScratch(int start, int end)
+	{
+		int length = end - start;
+		if(length<=0) return;
+		if(scratchLen + length > scratch.length)
+		{
+			byte[] grown = new byte[Math.max(scratch.length * 2, scratchLen + length)];
+			System.arraycopy(scratch, 0, grown, 0, scratchLen);
+			scratch = grown;
+		}
+		if(buf.hasArray())
+			System.arraycopy(buf.array(), buf.arrayOffset() + start, scratch, scratchLen, length);
+		else
+			buf.get(start, scratch, scratchLen, length);
+		scratchLen += length;
+	}
+
+	/**
+	 * Decode the bytes between start and end in the buffer to a string
+	 */
+	protected String string(int start, int end, KVSKeyTable table)
+	{
+		if(start>=end) return "";
+		if(buf.hasArray()) return this.string(buf.array(), buf.arrayOffset() + start, end - start, table);
+
+		scratchLen = 0;
+		this.appendScratch(start, end);
+		return this.string(scratch, 0, scratchLen, table);
+	}
+
+	private String string(byte[] data, int offset, int length, KVSKeyTable table)
+	{
+		if(length<=0) return "";
+		if(table!=null) return table.get(data, offset, length);
+		return new String(data, offset, length, StandardCharsets.UTF_8);
+	}
+
+	// Bytes <= ' ' are never part of a multi-byte UTF-8 sequence, so this trims exactly like String.trim()
+	private String trimmed(int start, int end)
+	{
+		while(start<end && (buf.get(start) & 0xFF) <= ' ') start++;
+		while(end>start && (buf.get(end-1) & 0xFF) <= ' ') end--;
+		return this.string(start, end, keys);
+	}
+
+	private String trimmed(byte[] data, int start, int end)
+	{
+		while(start<end && (data[start] & 0xFF) <= ' ') start++;
+		while(end>start && (data[end-1] & 0xFF) <= ' ') end--;
+		return this.string(data, start, end - start, keys);
+	}
+
+	/**
+	 * Creates a decoder for the bytes between start and end of this decoder's
+	 * buffer, with the same options as this one. Used to decode lazy structures.
+	 */
+	KVSDecoder slice(int start, int end)
+	{
+		KVSDecoder slice = new KVSDecoder(buf, start, end);
+		slice.lazy = lazy;
+		slice.keys = keys;
+		slice.values = values;
+		return slice;
+	}
+}
@@ -0,0 +1,460 @@
+package slite.lib.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+/**
+ * Streaming KVS encoder. Walks a KVS structure and writes UTF-8 bytes straight
+ * into a reusable buffer that is flushed to the output stream whenever it fills
+ * up, so the encoded document is never held in memory as a whole. The output is
+ * byte for byte the same as KVS.toString(pretty, wrapKey) encoded as UTF-8.
+ * <p>
+ * An encoder without a stream grows its buffer instead, which is how the
+ * encodings kept for KVS.cacheEncoding() are built.
+ * </p>
+ */
+class KVSEncoder
+{
+	static final int BUFFER_SIZE = 8192;
+	static final int KEEP_SIZE = 256; // the fewest bytes a sub-structure keeps, smaller ones are cheaper to encode again
+	static final byte[] NOT_KEPT = new byte[0]; // kept by a structure that hasn't changed but is smaller than KEEP_SIZE
+
+	private final OutputStream out;
+	private byte[] buf;
+	private int pos = 0;
+
+	KVSEncoder(OutputStream out)
+	{
+		this(out, BUFFER_SIZE);
+	}
+
+	KVSEncoder(OutputStream out, int bufferSize)
+	{
+		this.out = out;
+		this.buf = new byte[Math.max(bufferSize, 16)];
+	}
+
+	/**
+	 * An encoder that keeps everything written in its buffer
+	 */
+	KVSEncoder()
+	{
+		this(null, BUFFER_SIZE);
+	}
+
+	/**
+	 * Encode the KVS to the stream
+	 * @param kvs
+	 * @param wrapKey If null the KVS is not wrapped, see KVS.toString(boolean, String)
+	 * @param pretty
+	 * @throws IOException
+	 */
+	void write(KVS kvs, String wrapKey, boolean pretty) throws IOException
+	{
+		this.write(kvs, wrapKey, pretty ? 0 : -1);
+	}
+
+	/**
+	 * Same as KVS.toString(StringBuilder, String, int), the indent is the
+	 * number of tabs, with -1 meaning that it's not pretty
+	 */
+	private void write(KVS kvs, String wrapKey, int indent) throws IOException
+	{
+		this.writeStart(wrapKey, indent);
+
+		KVSArrayMap array = kvs.array();
+		if(array!=null) // every key is an auto key, so there are none to write
+		{
+			int indentSub = (indent < 0 ? -1 : (wrapKey!=null ? indent + 1 : indent));
+			int size = array.size();
+			for(int i=0;i<size;i++) this.writePair("", array.element(i), indentSub);
+		}
+		else if(!kvs.isEmpty())
+		{
+			int autoId = 0;
+			int indentSub = (indent < 0 ? -1 : (wrapKey!=null ? indent + 1 : indent));
+			for(Entry<String,Object> entry : kvs.map().entrySet())
+			{
+				String key = entry.getKey();
+				if(isAutoKey(key, autoId))
+				{
+					key = "";
+					autoId++;
+				}
+				this.writePair(key, entry.getValue(), indentSub);
+			}
+		}
+
+		this.writeEnd(wrapKey, indent);
+	}
+
+	/**
+	 * Encode the KVS to the stream compactly, copying the bytes it keeps for
+	 * KVS.cacheEncoding() instead of encoding it again where it hasn't changed
+	 * @param kvs
+	 * @param wrapKey If null the KVS is not wrapped
+	 * @throws IOException
+	 */
+	void writeCached(KVS kvs, String wrapKey) throws IOException
+	{
+		this.writeStart(wrapKey, -1);
+		this.writeBytes(encode(kvs));
+		this.writeEnd(wrapKey, -1);
+	}
+
+	/**
+	 * The same as KVS.toString(false, wrapKey), but through the kept bytes like writeCached()
+	 */
+	static String toString(KVS kvs, String wrapKey)
+	{
+		try
+		{
+			if(wrapKey==null) return new String(encode(kvs), StandardCharsets.UTF_8);
+			KVSEncoder encoder = new KVSEncoder();
+			encoder.writeCached(kvs, wrapKey);
+			return new String(encoder.buf, 0, encoder.pos, StandardCharsets.UTF_8);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException(e); // there is no stream to fail
+		}
+	}
+
+	/**
+	 * @return The compact encoding of the pairs of the structure, which it keeps if it can
+	 */
+	private static byte[] encode(KVS kvs) throws IOException
+	{
+		byte[] encoded = kvs.encoded;
+		if(encoded!=null && encoded!=NOT_KEPT) return encoded;
+
+		KVSEncoder encoder = new KVSEncoder();
+		if(encoder.writeKept(kvs, 0)) return kvs.encoded;
+		return Arrays.copyOf(encoder.buf, encoder.pos);
+	}
+
+	/**
+	 * Writes the pairs of the structure compactly, copying the bytes kept by the
+	 * structures that haven't changed since they were last written this way. The
+	 * structures written are marked as unchanged, and the ones of at least keep
+	 * bytes keep them. Only a structure whose values can't change without it
+	 * knowing can be marked, see KVS.changed().
+	 * @param kvs
+	 * @param keep The fewest bytes that are kept
+	 * @return true if the structure was marked
+	 */
+	private boolean writeKept(KVS kvs, int keep) throws IOException
+	{
+		byte[] encoded = kvs.encoded;
+		if(encoded!=null && encoded!=NOT_KEPT)
+		{
+			this.writeBytes(encoded);
+			return true;
+		}
+
+		int start = this.pos;
+		boolean unchanging = true;
+		KVSArrayMap array = kvs.array();
+		if(array!=null)
+		{
+			int size = array.size();
+			for(int i=0;i<size;i++) unchanging &= this.writeKept(kvs, "", array.element(i));
+		}
+		else
+		{
+			int autoId = 0;
+			for(Entry<String,Object> entry : kvs.map().entrySet())
+			{
+				String key = entry.getKey();
+				if(isAutoKey(key, autoId))
+				{
+					key = "";
+					autoId++;
+				}
+				unchanging &= this.writeKept(kvs, key, entry.getValue());
+			}
+		}
+
+		if(unchanging) kvs.encoded = this.pos - start>=keep ? Arrays.copyOfRange(this.buf, start, this.pos) : NOT_KEPT;
+		return unchanging;
+	}
+
+	/**
+	 * Writes one pair of the parent like writePair() does without an indent
+	 * @return true if the value can't change without the parent knowing
+	 */
+	private boolean writeKept(KVS parent, String key, Object value) throws IOException
+	{
+		if(value==null || !value.getClass().equals(KVS.class))
+		{
+			this.writePair(key, value, -1);
+			return value==null || value instanceof String || value instanceof KVSNumber || value instanceof KVSBinary
+				|| value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+				|| value instanceof Double || value instanceof Float || value instanceof Boolean || value instanceof Character;
+		}
+
+		KVS kvs = (KVS) value;
+		boolean frozen = kvs.isFrozen(); // can be shared, as it never changes
+		if(kvs.parent==null && !frozen) kvs.parent = parent;
+		this.writeText(key, false);
+		this.writeByte('[');
+		boolean unchanging = this.writeKept(kvs, KEEP_SIZE);
+		this.writeByte(']');
+		return unchanging && (frozen || kvs.parent==parent); // a change to one held by another structure would not reach this one
+	}
+
+	/**
+	 * Writes what comes before the pairs of a structure, which is nothing if wrapKey is null
+	 */
+	void writeStart(String wrapKey, int indent) throws IOException
+	{
+		if(wrapKey!=null)
+		{
+			if(indent<0)
+			{
+				this.writeText(wrapKey, false);
+				this.writeByte('[');
+			}
+			else
+			{
+				this.writeByte('\n');
+				this.writeTabs(indent);
+				this.writeText(wrapKey, false);
+				this.writeByte('[');
+				this.writeByte('\n');
+			}
+		}
+	}
+
+	/**
+	 * Writes what comes after the pairs of a structure, which is nothing if wrapKey is null
+	 */
+	void writeEnd(String wrapKey, int indent) throws IOException
+	{
+		if(wrapKey!=null)
+		{
+			if(indent>=0) this.writeTabs(indent);
+			this.writeByte(']');
+			if(indent>=0) this.writeByte('\n');
+		}
+	}
+
+	/**
+	 * Writes one pair, the key must already be "" if it's an auto key
+	 */
+	void writePair(String key, Object value, int indent) throws IOException
+	{
+		this.writeTabs(indent);
+		this.writeText(key, false);
+
+		if(value!=null && value.getClass().equals(KVS.class))
+			this.write((KVS)value, "", indent);
+		else
+		{
+			this.writeByte('=');
+			if(value instanceof Integer || value instanceof Long) // digits never need escaping
+				this.writeLong(((Number)value).longValue());
+			else if(value instanceof KVSBinary) // neither does Base64
+				this.writeBinary((KVSBinary)value);
+			else if(value instanceof KVSNumber && !((KVSNumber)value).isDecimal())
+				this.writeLong(((KVSNumber)value).longValue());
+			else
+				this.writeText(value instanceof String ? (String)value : String.valueOf(value), true);
+			this.writeByte(';');
+			if(indent>=0) this.writeByte('\n');
+		}
+	}
+
+	/**
+	 * Writes a pair with a whole number, without boxing it
+	 */
+	void writePair(String key, long value, int indent) throws IOException
+	{
+		this.writeTabs(indent);
+		this.writeText(key, false);
+		this.writeByte('=');
+		this.writeLong(value);
+		this.writeByte(';');
+		if(indent>=0) this.writeByte('\n');
+	}
+
+	/**
+	 * Writes the key of a sub-structure and what comes before its pairs, the
+	 * pairs then have an indent one more and writeEnd("", indent) ends it
+	 */
+	void writeStructureStart(String key, int indent) throws IOException
+	{
+		this.writeTabs(indent);
+		this.writeText(key, false);
+		this.writeStart("", indent);
+	}
+
+	/**
+	 * Returns true if the key is the decimal representation of id, without building a string for id.
+	 * @param key
+	 * @param id Must not be negative
+	 * @return
+	 */
+	static boolean isAutoKey(String key, int id)
+	{
+		int length = key.length();
+		if(length==0 || length>10) return false;
+		if(length>1 && key.charAt(0)=='0') return false;
+
+		long parsed = 0;
+		for(int i=0;i<length;i++)
+		{
+			char c = key.charAt(i);
+			if(c<'0' || c>'9') return false;
+			parsed = parsed * 10 + (c - '0');
+		}
+		return parsed==id;
+	}
+
+	private void writeTabs(int count) throws IOException
+	{
+		for(int i=0;i<count;i++) this.writeByte('\t');
+	}
+
+	private void writeByte(int b) throws IOException
+	{
+		if(pos==buf.length) this.flushBuffer();
+		buf[pos++] = (byte) b;
+	}
+
+	/**
+	 * Writes the decimal digits of the value without building a string
+	 */
+	private void writeLong(long value) throws IOException
+	{
+		if(value==Long.MIN_VALUE)
+		{
+			this.writeText(Long.toString(value), false);
+			return;
+		}
+		if(pos + 20 > buf.length) this.flushBuffer();
+		if(value<0)
+		{
+			buf[pos++] = '-';
+			value = -value;
+		}
+
+		int end = pos;
+		long rest = value;
+		do { end++; rest /= 10; } while(rest>0);
+
+		int i = end;
+		do { buf[--i] = (byte) ('0' + (value % 10)); value /= 10; } while(value>0);
+		pos = end;
+	}
+
+	/**
+	 * Writes the bytes as Base64 a buffer full at a time
+	 */
+	private void writeBinary(KVSBinary value) throws IOException
+	{
+		int length = value.length();
+		for(int i=0;i<length;)
+		{
+			if(pos + 4 > buf.length) this.flushBuffer();
+			int next = Math.min(length, i + (buf.length - pos) / 4 * 3);
+			pos = value.encode(i, next, buf, pos);
+			i = next;
+		}
+	}
+
+	/**
+	 * Writes the text as UTF-8, repeating every ; if escape is true.
+	 * Unpaired surrogates are written as ? like String.getBytes(UTF_8) does.
+	 */
+	private void writeText(String text, boolean escape) throws IOException
+	{
+		int length = text.length();
+		for(int i=0;i<length;i++)
+		{
+			if(pos + 4 > buf.length) this.flushBuffer();
+
+			char c = text.charAt(i);
+			if(c<0x80)
+			{
+				buf[pos++] = (byte) c;
+				if(c==';' && escape) buf[pos++] = (byte) c;
+			}
+			else if(c<0x800)
+			{
+				buf[pos++] = (byte) (0xC0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if(Character.isSurrogate(c))
+			{
+				if(Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(text.charAt(i+1)))
+				{
+					int cp = Character.toCodePoint(c, text.charAt(++i));
+					buf[pos++] = (byte) (0xF0 | (cp >> 18));
+					buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+				}
+				else
+					buf[pos++] = '?';
+			}
+			else
+			{
+				buf[pos++] = (byte) (0xE0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Writes bytes that are already encoded
+	 */
+	private void writeBytes(byte[] bytes) throws IOException
+	{
+		if(pos + bytes.length > buf.length)
+		{
+			if(out==null)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes.length));
+			else
+			{
+				this.flushBuffer();
+				if(bytes.length > buf.length) // no need to copy them into the buffer first
+				{
+					out.write(bytes);
+					return;
+				}
+			}
+		}
+		System.arraycopy(bytes, 0, buf, pos, bytes.length);
+		pos += bytes.length;
+	}
+
+	/**
+	 * Makes room in the buffer, by writing it to the stream or, without a stream, by growing it
+	 */
+	private void flushBuffer() throws IOException
+	{
+		if(out==null)
+		{
+			buf = Arrays.copyOf(buf, buf.length * 2);
+			return;
+		}
+		if(pos>0) out.write(buf, 0, pos);
+		pos = 0;
+	}
+
+	/**
+	 * Writes whatever is left in the buffer and flushes the stream
+	 * @throws IOException
+	 */
+	void flush() throws IOException
+	{
+		if(out==null) return;
+		this.flushBuffer();
+		out.flush();
+	}
+}
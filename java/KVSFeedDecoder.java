@@ -0,0 +1,244 @@
+package slite.lib.java;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An incremental KVS decoder for non-blocking IO. Bytes are fed in chunks of any
+ * size as they arrive, for example from a SocketChannel, and every top-level
+ * key-value pair is handed to the listener as soon as it is complete. All parser
+ * state, including the nesting depth, a partially read key or value, and a ;
+ * that could still be an escape, is kept between calls to feed().
+ * <p>
+ * The pairs decoded are exactly what KVS.fromStream(stream, -1) would decode
+ * from the same bytes, with the exception that a ] that does not close any
+ * structure is ignored instead of ending the input.
+ * </p>
+ */
+public class KVSFeedDecoder
+{
+	/**
+	 * Receives the top-level key-value pairs as they are completed
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param key The key, with null keys already replaced by their auto incremented number
+		 * @param value Either a String or a KVS
+		 */
+		void pair(String key, Object value);
+	}
+
+	private static final int KEY = 0;
+	private static final int META = 1;
+	private static final int VALUE = 2;
+	private static final int VALUE_SEMICOLON = 3; // a ; has been read in a value and the next byte decides if it's an escape
+
+	private final Listener listener;
+	private final KVSKeyTable keys;
+	private int state = KEY;
+
+	private byte[] token = new byte[64];
+	private int tokenLength = 0;
+	private String key = null; // the key of the value currently being read
+
+	// The structures currently open, with the key each one will be stored under in its parent
+	private KVS[] structures = new KVS[8];
+	private String[] structureKeys = new String[8];
+	private int[] autoIds = new int[9]; // autoIds[0] is the top-level
+	private int depth = 0;
+
+	public KVSFeedDecoder(Listener listener)
+	{
+		this(listener, null);
+	}
+
+	/**
+	 * @param listener
+	 * @param keys If not null then keys are looked up in this table so that
+	 * repeated keys are only decoded once, see KVSKeyTable.
+	 */
+	public KVSFeedDecoder(Listener listener, KVSKeyTable keys)
+	{
+		this.listener = listener;
+		this.keys = keys;
+	}
+
+	/**
+	 * Decode all the remaining bytes in the buffer. Afterwards the buffer's position
+	 * is at its limit. Any pair that is still incomplete is kept until more bytes
+	 * are fed.
+	 * @param data
+	 * @return The number of top-level pairs completed by this chunk
+	 */
+	public int feed(ByteBuffer data)
+	{
+		int count = 0;
+		int b;
+		while(data.hasRemaining())
+		{
+			b = data.get() & 0xFF;
+			switch(this.state)
+			{
+				case VALUE_SEMICOLON:
+					if(b==';') // escaped ;, keep one of them
+					{
+						this.append(b);
+						this.state = VALUE;
+						break;
+					}
+					count += this.completeValue();
+					count += this.keyByte(b); // the byte is the start of the next key
+					break;
+				case KEY:
+					count += this.keyByte(b);
+					break;
+				case META:
+					if(b=='[' || b=='=') this.startValue(b); // Reading through meta data (future protocol)
+					break;
+				case VALUE:
+					if(b==';') this.state = VALUE_SEMICOLON;
+					else this.append(b);
+					break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Signals that there is no more input. A value terminated by the last byte
+	 * fed is completed, and any structures still open are closed and handed to
+	 * the listener the same way the stream decoder keeps structures that are cut
+	 * short. A key or primitive value that was not terminated is discarded.
+	 * @return The number of top-level pairs completed
+	 */
+	public int end()
+	{
+		int count = 0;
+		if(this.state==VALUE_SEMICOLON) count += this.completeValue();
+		this.tokenLength = 0;
+		this.key = null;
+		this.state = KEY;
+		while(this.depth>0) count += this.endStructure();
+		return count;
+	}
+
+	/**
+	 * @return The number of structures currently open
+	 */
+	public int getDepth()
+	{
+		return this.depth;
+	}
+
+	/**
+	 * Handles a byte read while in a key
+	 * @return The number of top-level pairs completed
+	 */
+	private int keyByte(int b)
+	{
+		if(b==']') return this.endStructure();
+		if(b=='[' || b=='=' || b=='~')
+		{
+			this.key = this.trimmedToken();
+			if(this.key.isEmpty()) this.key = Integer.toString(this.autoIds[this.depth]++);
+			if(b=='~') this.state = META;
+			else this.startValue(b);
+		}
+		else
+			this.append(b);
+		return 0;
+	}
+
+	private void startValue(int terminator)
+	{
+		this.tokenLength = 0;
+		if(terminator=='=')
+		{
+			this.state = VALUE;
+			return;
+		}
+
+		if(this.depth+1==this.structures.length)
+		{
+			int size = this.structures.length * 2;
+			KVS[] structures = new KVS[size];
+			String[] structureKeys = new String[size];
+			int[] autoIds = new int[size + 1];
+			System.arraycopy(this.structures, 0, structures, 0, this.structures.length);
+			System.arraycopy(this.structureKeys, 0, structureKeys, 0, this.structureKeys.length);
+			System.arraycopy(this.autoIds, 0, autoIds, 0, this.autoIds.length);
+			this.structures = structures;
+			this.structureKeys = structureKeys;
+			this.autoIds = autoIds;
+		}
+
+		this.depth++;
+		this.structures[this.depth] = new KVS();
+		this.structureKeys[this.depth] = this.key;
+		this.autoIds[this.depth] = 0;
+		this.key = null;
+		this.state = KEY;
+	}
+
+	private int completeValue()
+	{
+		String value = this.tokenLength==0 ? "" : new String(this.token, 0, this.tokenLength, StandardCharsets.UTF_8);
+		this.tokenLength = 0;
+		this.state = KEY;
+		return this.put(this.key, value);
+	}
+
+	/**
+	 * Closes the current structure. A partially read key is discarded.
+	 */
+	private int endStructure()
+	{
+		this.tokenLength = 0;
+		if(this.depth==0) return 0; // nothing to close
+
+		KVS kvs = this.structures[this.depth];
+		String key = this.structureKeys[this.depth];
+		this.structures[this.depth] = null;
+		this.structureKeys[this.depth] = null;
+		this.depth--;
+		return this.put(key, kvs);
+	}
+
+	private int put(String key, Object value)
+	{
+		this.key = null;
+		if(this.depth>0)
+		{
+			this.structures[this.depth].set(value, key);
+			return 0;
+		}
+
+		this.listener.pair(key, value);
+		return 1;
+	}
+
+	private void append(int b)
+	{
+		if(this.tokenLength==this.token.length)
+		{
+			byte[] grown = new byte[this.token.length * 2];
+			System.arraycopy(this.token, 0, grown, 0, this.tokenLength);
+			this.token = grown;
+		}
+		this.token[this.tokenLength++] = (byte) b;
+	}
+
+	// Bytes <= ' ' are never part of a multi-byte UTF-8 sequence, so this trims exactly like String.trim()
+	private String trimmedToken()
+	{
+		int start = 0;
+		int end = this.tokenLength;
+		this.tokenLength = 0;
+		while(start<end && (this.token[start] & 0xFF) <= ' ') start++;
+		while(end>start && (this.token[end-1] & 0xFF) <= ' ') end--;
+		if(start>=end) return "";
+		if(this.keys!=null) return this.keys.get(this.token, start, end - start);
+		return new String(this.token, start, end - start, StandardCharsets.UTF_8);
+	}
+}
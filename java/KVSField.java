@@ -0,0 +1,21 @@
+package slite.lib.java;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Gives a field of a KVSObject class a key other than its name
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.FIELD)
+public @interface KVSField
+{
+	/**
+	 * @return The key of the field
+	 */
+	String value();
+}
@@ -0,0 +1,152 @@
+package slite.lib.java;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The compact, immutable map of a frozen KVS, see KVS.freeze().
+ * <p>
+ * The keys and values are kept in insertion order in one array, alternating
+ * key, value, key, value. A small map is searched from the start, which for a
+ * handful of keys is as fast as hashing. A larger map adds an open-addressing
+ * table of positions into that array, probed linearly. There are no entry
+ * objects at all, so a map of three pairs takes a few dozen bytes instead of
+ * the couple of hundred a LinkedHashMap needs.
+ * </p>
+ * Every method that would change the map throws an UnsupportedOperationException.
+ */
+final class KVSFrozenMap extends AbstractMap<String, Object>
+{
+	// Maps up to this size are searched from the start instead of through the table
+	private static final int LINEAR_SIZE = 8;
+
+	private final Object[] pairs;
+	private final int[] table; // the pair number + 1 of every key, 0 for an empty slot, or null for a small map
+
+	KVSFrozenMap(Map<String, Object> map)
+	{
+		int size = map.size();
+		this.pairs = new Object[size * 2];
+		int i = 0;
+		for(Entry<String, Object> entry : map.entrySet())
+		{
+			this.pairs[i++] = entry.getKey();
+			this.pairs[i++] = entry.getValue();
+		}
+
+		if(size<=LINEAR_SIZE)
+		{
+			this.table = null;
+			return;
+		}
+
+		// at most half full, so that probes stay short
+		this.table = new int[Integer.highestOneBit(size * 2 - 1) << 1];
+		int mask = this.table.length - 1;
+		int slot;
+		for(int pair=0;pair<size;pair++)
+		{
+			slot = hash(this.pairs[pair * 2]) & mask;
+			while(this.table[slot]!=0) slot = (slot + 1) & mask;
+			this.table[slot] = pair + 1;
+		}
+	}
+
+	private static int hash(Object key)
+	{
+		int hash = key.hashCode();
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * @return The index of the key in the pairs array, or -1 if it's not in the map
+	 */
+	private int indexOf(Object key)
+	{
+		if(key==null) return -1;
+
+		if(this.table==null)
+		{
+			for(int i=0;i<this.pairs.length;i+=2)
+				if(key.equals(this.pairs[i])) return i;
+			return -1;
+		}
+
+		int mask = this.table.length - 1;
+		int slot = hash(key) & mask;
+		int pair;
+		while((pair = this.table[slot])!=0)
+		{
+			if(key.equals(this.pairs[(pair - 1) * 2])) return (pair - 1) * 2;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	@Override
+	public Object get(Object key)
+	{
+		int index = this.indexOf(key);
+		return index<0 ? null : this.pairs[index + 1];
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return this.indexOf(key)>=0;
+	}
+
+	@Override
+	public int size()
+	{
+		return this.pairs.length / 2;
+	}
+
+	@Override
+	public boolean isEmpty()
+	{
+		return this.pairs.length==0;
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet()
+	{
+		return new AbstractSet<Entry<String, Object>>()
+		{
+			@Override
+			public Iterator<Entry<String, Object>> iterator()
+			{
+				return new Iterator<Entry<String, Object>>()
+				{
+					private int index = 0;
+
+					@Override
+					public boolean hasNext()
+					{
+						return this.index<KVSFrozenMap.this.pairs.length;
+					}
+
+					@Override
+					public Entry<String, Object> next()
+					{
+						if(!this.hasNext()) throw new NoSuchElementException();
+						Object[] pairs = KVSFrozenMap.this.pairs;
+						Entry<String, Object> entry = new SimpleImmutableEntry<>((String) pairs[this.index], pairs[this.index + 1]);
+						this.index += 2;
+						return entry;
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return KVSFrozenMap.this.size();
+			}
+		};
+	}
+}
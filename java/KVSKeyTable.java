@@ -0,0 +1,108 @@
+package slite.lib.java;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A bounded table of decoded strings, looked up by their raw UTF-8 bytes. When
+ * given to a decoder every key is looked up in the table first, so a key that
+ * repeats throughout a document (or across documents if the table is shared)
+ * is only decoded and allocated once. A table can also be given to a decoder as
+ * a value cache, which is worth it for values with a low cardinality such as
+ * types, states or flags.
+ * <p>
+ * The table never grows past its size. Every string hashes to two slots and when
+ * both are taken the older entry is replaced, so the table keeps up with the
+ * strings currently in use. Strings longer than the maximum length are never
+ * stored. A table can be shared between decoders on different threads.
+ * </p>
+ */
+public class KVSKeyTable
+{
+	public static final int DEFAULT_SIZE = 1024;
+	public static final int DEFAULT_MAX_LENGTH = 64;
+
+	private static final class Entry
+	{
+		final int hash;
+		final byte[] bytes;
+		final String string;
+
+		Entry(int hash, byte[] bytes, String string)
+		{
+			this.hash = hash;
+			this.bytes = bytes;
+			this.string = string;
+		}
+	}
+
+	// Entries are immutable, so a slot that is read while another thread replaces it is still consistent
+	private final Entry[] entries;
+	private final int mask;
+	private final int maxLength;
+
+	/**
+	 * Construct a table of DEFAULT_SIZE entries holding strings of up to DEFAULT_MAX_LENGTH bytes
+	 */
+	public KVSKeyTable()
+	{
+		this(DEFAULT_SIZE, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * @param size The number of entries, rounded up to a power of two
+	 * @param maxLength Strings with more bytes than this are decoded without being stored
+	 */
+	public KVSKeyTable(int size, int maxLength)
+	{
+		int capacity = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+		this.entries = new Entry[capacity];
+		this.mask = capacity - 1;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Returns the string for the UTF-8 bytes, decoding and storing it if it's not in the table yet.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	String get(byte[] data, int offset, int length)
+	{
+		if(length<=0) return "";
+		if(length>this.maxLength) return new String(data, offset, length, StandardCharsets.UTF_8);
+
+		int hash = 1;
+		int end = offset + length;
+		for(int i=offset;i<end;i++) hash = 31 * hash + data[i];
+		hash ^= (hash >>> 16);
+
+		int slot = hash & this.mask;
+		Entry first = this.entries[slot];
+		if(first!=null && first.hash==hash && Arrays.equals(first.bytes, 0, first.bytes.length, data, offset, end)) return first.string;
+		int other = (slot + 1) & this.mask;
+		Entry second = this.entries[other];
+		if(second!=null && second.hash==hash && Arrays.equals(second.bytes, 0, second.bytes.length, data, offset, end)) return second.string;
+
+		String string = new String(data, offset, length, StandardCharsets.UTF_8);
+		Entry entry = new Entry(hash, Arrays.copyOfRange(data, offset, end), string);
+		if(first==null)
+			this.entries[slot] = entry;
+		else
+		{
+			// move the first one along so that the slot it hashed to keeps the most recent string
+			this.entries[other] = first;
+			this.entries[slot] = entry;
+		}
+		return string;
+	}
+
+	/**
+	 * Removes every string from the table
+	 */
+	public void clear()
+	{
+		Arrays.fill(this.entries, null);
+	}
+}
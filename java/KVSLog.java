@@ -0,0 +1,607 @@
+package slite.lib.java;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An append-only store of KVS records. Every record is a top-level key with a
+ * wrapped KVS structure as its value, appended to the end of a segment file. All
+ * the segment files of the store chained together in order form one valid KVS
+ * document, where a key appended later overwrites the same key appended earlier.
+ * <p>
+ * An in-memory index maps every top-level key to the position of its latest
+ * record, so reading a record only decodes that record. Once a segment reaches
+ * the segment size it is sealed and a new segment is started. Sealed segments
+ * get an index file next to them so that opening the store only has to scan the
+ * active segment. compact() rewrites the sealed segments into one, dropping
+ * every record that has been overwritten by a later one.
+ * </p>
+ * <p>
+ * Segments are named &lt;number&gt;.kvs inside the store's directory, and their
+ * index files &lt;number&gt;.idx. The store is safe to use from multiple threads.
+ * </p>
+ */
+public class KVSLog implements Closeable
+{
+	public static final long DEFAULT_SEGMENT_SIZE = 64L << 20; // 64 MB
+
+	private static final String SEGMENT_EXTENSION = ".kvs";
+	private static final String INDEX_EXTENSION = ".idx";
+
+	/**
+	 * Where the latest record of a key is
+	 */
+	private static final class Location
+	{
+		final int segment;
+		final long offset;
+		final int length;
+
+		Location(int segment, long offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File directory;
+	private final long segmentSize;
+	private final LinkedHashMap<String, Location> index = new LinkedHashMap<>();
+	private final TreeMap<Integer, FileChannel> segments = new TreeMap<>(); // all segments, the last one is active
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ReentrantLock compactionLock = new ReentrantLock();
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(); // guarded by the write lock
+	private final Set<String> activeKeys = new LinkedHashSet<>(); // the keys appended to the active segment, guarded by the write lock
+	private int active;
+	private long autoKey = 0;
+
+	/**
+	 * Open the store in the given directory using the default segment size.
+	 * The directory is created if it does not exist.
+	 * @param directory
+	 * @throws IOException
+	 */
+	public KVSLog(File directory) throws IOException
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Open the store in the given directory. The directory is created if it does not exist.
+	 * @param directory
+	 * @param segmentSize The size in bytes after which a segment is sealed and a new one started
+	 * @throws IOException
+	 */
+	public KVSLog(File directory, long segmentSize) throws IOException
+	{
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create "+directory);
+
+		List<Integer> numbers = new ArrayList<>();
+		String[] names = directory.list();
+		if(names!=null)
+		{
+			for(String name : names)
+			{
+				if(!name.endsWith(SEGMENT_EXTENSION)) continue;
+				try { numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXTENSION.length()))); }
+				catch(NumberFormatException e) { /* not one of ours */ }
+			}
+		}
+		Integer[] sorted = numbers.toArray(new Integer[0]);
+		Arrays.sort(sorted);
+
+		for(int i=0;i<sorted.length;i++)
+		{
+			int number = sorted[i];
+			boolean last = i==sorted.length-1;
+			FileChannel channel = FileChannel.open(this.segmentFile(number).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.segments.put(number, channel);
+			if(last || !this.loadIndex(number, channel.size()))
+				this.scan(number, channel, last);
+		}
+
+		if(this.segments.isEmpty()) this.openSegment(0);
+		this.active = this.segments.lastKey();
+	}
+
+	/**
+	 * Appends the record under the given key. The record is written to the
+	 * active segment as key[...] and replaces any earlier record with that key.
+	 * If the key is empty then the next auto incremented key is used.
+	 * <p>
+	 * The key must not contain any of the reserved characters or start or end with whitespace.
+	 * </p>
+	 * @param key
+	 * @param record
+	 * @return The key the record was appended under, to read it back with get()
+	 * @throws IOException
+	 * @throws IllegalArgumentException If the key has a reserved character or whitespace at either end
+	 */
+	public String append(String key, KVS record) throws IOException
+	{
+		checkKey(key);
+		this.lock.writeLock().lock();
+		try
+		{
+			if(key.isEmpty()) key = Long.toString(this.autoKey);
+			this.updateAutoKey(key);
+
+			this.record.reset();
+			KVSEncoder encoder = new KVSEncoder(this.record);
+			encoder.write(record, key, false);
+			encoder.flush();
+
+			FileChannel channel = this.segments.get(this.active);
+			long offset = channel.size();
+			ByteBuffer bytes = ByteBuffer.wrap(this.record.toByteArray());
+			while(bytes.hasRemaining()) channel.write(bytes, offset + bytes.position());
+			this.index.put(key, new Location(this.active, offset, this.record.size()));
+			this.activeKeys.add(key);
+
+			if(channel.size()>=this.segmentSize) this.seal();
+			return key;
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends the record under the next auto incremented key, one more than the
+	 * largest numeric key in the store. The key is written explicitly so that it
+	 * does not change when segments are compacted.
+	 * @param record
+	 * @return The key the record was appended under
+	 * @throws IOException
+	 */
+	public String append(KVS record) throws IOException
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			return this.append(Long.toString(this.autoKey), record);
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads the latest record of the key by seeking to it, without reading any other record.
+	 * @param key
+	 * @return A KVS if the record is a structure, a String if it is a primitive
+	 * value, or null if there is no record with that key
+	 * @throws IOException
+	 */
+	public Object get(String key) throws IOException
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			Location location = this.index.get(key);
+			if(location==null) return null;
+
+			byte[] data = this.read(this.segments.get(location.segment), location.offset, location.length);
+			KVS kvs = new KVS();
+			kvs.fromBuffer(new KVSDecoder(data), 1);
+			return kvs.isEmpty() ? null : kvs.getFirstValue();
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Same as get(String key) but only returns structures.
+	 * @param key
+	 * @return The KVS, or null if there is no record with that key or it's not a structure
+	 * @throws IOException
+	 */
+	public KVS getKvs(String key) throws IOException
+	{
+		Object value = this.get(key);
+		return value instanceof KVS ? (KVS) value : null;
+	}
+
+	/**
+	 * @param key
+	 * @return true if there is a record with that key
+	 */
+	public boolean exists(String key)
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.index.containsKey(key);
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return A copy of all the keys in the store, in the order they were first appended
+	 */
+	public Set<String> keySet()
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return new LinkedHashSet<>(this.index.keySet());
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of keys in the store
+	 */
+	public int size()
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.index.size();
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces everything appended so far to be written to the storage device
+	 * @throws IOException
+	 */
+	public void sync() throws IOException
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			this.segments.get(this.active).force(false);
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites all the sealed segments into a single segment that only contains
+	 * the records that have not been overwritten. Appends and reads can carry on
+	 * while this runs, they are only blocked while the new segment is swapped in.
+	 * If a compaction is already running then this returns straight away.
+	 * @throws IOException
+	 */
+	public void compact() throws IOException
+	{
+		if(!this.compactionLock.tryLock()) return;
+		try
+		{
+			List<Integer> sealed;
+			Map<Integer, FileChannel> channels;
+			this.lock.readLock().lock();
+			try
+			{
+				channels = new HashMap<>(this.segments.headMap(this.active));
+				sealed = new ArrayList<>(channels.keySet());
+				sealed.sort(null);
+			}
+			finally
+			{
+				this.lock.readLock().unlock();
+			}
+			if(sealed.isEmpty()) return;
+
+			// Sealed segments never change, so they can be copied without holding the lock
+			int target = sealed.get(sealed.size()-1);
+			File temp = new File(this.directory, target + SEGMENT_EXTENSION + ".tmp");
+			Map<String, Location> moved = new LinkedHashMap<>();
+			Map<String, Location> replaced = new HashMap<>();
+			try(FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+			{
+				List<Map.Entry<String, Location>> live = new ArrayList<>();
+				this.lock.readLock().lock();
+				try
+				{
+					for(Map.Entry<String, Location> entry : this.index.entrySet())
+						if(entry.getValue().segment<=target) live.add(new AbstractMap.SimpleEntry<>(entry)); // a copy, the index entries change with appends
+				}
+				finally
+				{
+					this.lock.readLock().unlock();
+				}
+				live.sort((a, b) -> a.getValue().segment!=b.getValue().segment
+						? Integer.compare(a.getValue().segment, b.getValue().segment)
+						: Long.compare(a.getValue().offset, b.getValue().offset));
+
+				long offset = 0;
+				for(Map.Entry<String, Location> entry : live)
+				{
+					Location location = entry.getValue();
+					ByteBuffer bytes = ByteBuffer.wrap(this.read(channels.get(location.segment), location.offset, location.length));
+					while(bytes.hasRemaining()) out.write(bytes);
+					moved.put(entry.getKey(), new Location(target, offset, location.length));
+					replaced.put(entry.getKey(), location);
+					offset += location.length;
+				}
+				out.force(false);
+			}
+
+			this.lock.writeLock().lock();
+			try
+			{
+				// The compacted segment replaces the newest sealed one first, so that a crash
+				// part way through only leaves older segments behind that it overwrites anyway
+				Files.move(temp.toPath(), this.segmentFile(target).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				for(int number : sealed)
+				{
+					this.segments.remove(number).close();
+					if(number!=target) Files.deleteIfExists(this.segmentFile(number).toPath());
+					Files.deleteIfExists(this.indexFile(number).toPath());
+				}
+				FileChannel channel = FileChannel.open(this.segmentFile(target).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				this.segments.put(target, channel);
+
+				for(Map.Entry<String, Location> entry : moved.entrySet()) // skip keys appended again while compacting
+					if(this.index.get(entry.getKey())==replaced.get(entry.getKey()))
+						this.index.put(entry.getKey(), entry.getValue());
+
+				this.writeIndex(target, channel.size(), moved.keySet());
+			}
+			finally
+			{
+				this.lock.writeLock().unlock();
+			}
+		}
+		finally
+		{
+			this.compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs compact() on a daemon thread.
+	 * @return The thread, already started
+	 */
+	public Thread compactInBackground()
+	{
+		Thread thread = new Thread(() ->
+		{
+			try
+			{
+				this.compact();
+			}
+			catch(IOException e)
+			{
+				// the old segments are left in place, so nothing is lost
+			}
+		}, "KVSLog compaction");
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			for(FileChannel channel : this.segments.values()) channel.close();
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private File segmentFile(int number)
+	{
+		return new File(this.directory, number + SEGMENT_EXTENSION);
+	}
+
+	private File indexFile(int number)
+	{
+		return new File(this.directory, number + INDEX_EXTENSION);
+	}
+
+	private void openSegment(int number) throws IOException
+	{
+		FileChannel channel = FileChannel.open(this.segmentFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.segments.put(number, channel);
+		this.active = number;
+	}
+
+	/**
+	 * Seals the active segment, writing its index file, and starts a new segment.
+	 * Must be called with the write lock held.
+	 */
+	private void seal() throws IOException
+	{
+		FileChannel channel = this.segments.get(this.active);
+		channel.force(false);
+		this.writeIndex(this.active, channel.size(), this.activeKeys);
+		this.activeKeys.clear();
+		this.openSegment(this.active + 1);
+	}
+
+	/**
+	 * A key written as it is has to decode back to itself, or it would break the segment for every reader
+	 * @throws IllegalArgumentException
+	 */
+	private static void checkKey(String key)
+	{
+		for(int i=0;i<key.length();i++)
+		{
+			char c = key.charAt(i);
+			if(c=='[' || c==']' || c=='=' || c==';' || c=='~') throw new IllegalArgumentException("Reserved character "+c+" in the key "+key);
+		}
+		if(!key.trim().equals(key)) throw new IllegalArgumentException("Whitespace at the start or end of the key "+key);
+	}
+
+	private void updateAutoKey(String key)
+	{
+		if(key.length()>18) return;
+		long number = 0;
+		for(int i=0;i<key.length();i++)
+		{
+			char c = key.charAt(i);
+			if(c<'0' || c>'9') return;
+			number = number * 10 + (c - '0');
+		}
+		if(number>=this.autoKey) this.autoKey = number + 1;
+	}
+
+	private byte[] read(FileChannel channel, long offset, int length) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		while(bytes.hasRemaining())
+			if(channel.read(bytes, offset + bytes.position())<0) throw new EOFException();
+		return bytes.array();
+	}
+
+	/**
+	 * Finds every top-level record in a segment without decoding the values. If the
+	 * segment is the active one then a record that was only partly written, for
+	 * example because of a crash, is cut off so that appending can carry on.
+	 */
+	private void scan(int number, FileChannel channel, boolean active) throws IOException
+	{
+		InputStream stream = Channels.newInputStream(channel.position(0));
+		KVSDecoder buffer = new KVSDecoder(stream);
+		long end = 0;
+		try
+		{
+			while(true)
+			{
+				long start = buffer.position();
+				String key = buffer.readKey();
+				if(key==null) // a ] that does not close anything
+				{
+					end = buffer.position();
+					continue;
+				}
+				if(key.isEmpty()) key = Long.toString(this.autoKey);
+
+				if(buffer.prev()=='=') buffer.skipPrimitive();
+				else if(!buffer.skipStructure()) break;
+
+				end = buffer.position();
+				this.updateAutoKey(key);
+				this.index.put(key, new Location(number, start, (int)(end - start)));
+				if(active) this.activeKeys.add(key);
+			}
+		}
+		catch(EOFException e)
+		{
+			// the end of the segment
+		}
+
+		if(active && end<channel.size()) channel.truncate(end);
+	}
+
+	/**
+	 * Writes the index file of a sealed segment. It starts with the size of the
+	 * segment it describes, followed by the offset and length of every key whose
+	 * latest record is in the segment, like so: size=123;keys[key=0,45;other=45,78;]
+	 * Only the keys that were written to the segment are looked up, so sealing does
+	 * not have to go through the whole index.
+	 */
+	private void writeIndex(int number, long size, Set<String> keys) throws IOException
+	{
+		File temp = new File(this.directory, number + INDEX_EXTENSION + ".tmp");
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(temp)))
+		{
+			out.write(("size=" + size + ";keys[").getBytes(StandardCharsets.UTF_8));
+			for(String key : keys)
+			{
+				Location location = this.index.get(key);
+				if(location==null || location.segment!=number) continue; // appended again in a later segment
+				out.write((key + "=" + location.offset + "," + location.length + ";").getBytes(StandardCharsets.UTF_8));
+			}
+			out.write(']');
+		}
+		Files.move(temp.toPath(), this.indexFile(number).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads the index file of a sealed segment.
+	 * @return false if there is no index file or it does not describe the segment as it is now
+	 */
+	private boolean loadIndex(int number, long size) throws IOException
+	{
+		File file = this.indexFile(number);
+		if(!file.isFile()) return false;
+
+		List<String> keys = new ArrayList<>();
+		List<Location> locations = new ArrayList<>();
+		try(InputStream stream = new FileInputStream(file))
+		{
+			KVSReader reader = new KVSReader(stream);
+			if(reader.next()!=KVSReader.Event.PRIMITIVE || !reader.getKey().equals("size") || !reader.getValue().equals(Long.toString(size)))
+				return false;
+			if(reader.next()!=KVSReader.Event.START_STRUCTURE) return false;
+
+			while(reader.next()==KVSReader.Event.PRIMITIVE)
+			{
+				String value = reader.getValue();
+				int comma = value.indexOf(',');
+				if(comma<0) return false;
+				try
+				{
+					locations.add(new Location(number, Long.parseLong(value.substring(0, comma)), Integer.parseInt(value.substring(comma+1))));
+				}
+				catch(NumberFormatException e)
+				{
+					return false;
+				}
+				keys.add(reader.getKey());
+			}
+			if(reader.getEvent()!=KVSReader.Event.END_STRUCTURE) return false;
+		}
+
+		for(int i=0;i<keys.size();i++)
+		{
+			this.updateAutoKey(keys.get(i));
+			this.index.put(keys.get(i), locations.get(i));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,81 @@
+package slite.lib.java;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decodes KVS straight out of a memory mapped file. Files are mapped in windows
+ * of at most WINDOW_SIZE bytes so that files bigger than 2 GB can be walked by
+ * mapping the next window whenever the current one is exhausted. Keys and values
+ * that cross a window boundary are stitched together by the KVSDecoder.
+ */
+class KVSMappedDecoder extends KVSDecoder
+{
+	static final long WINDOW_SIZE = 1L << 28; // 256 MB
+
+	private final FileChannel channel;
+	private final long start;
+	private final long end;
+	private final long windowSize;
+	private long offset; // file offset of the next window to map
+
+	KVSMappedDecoder(FileChannel channel) throws IOException
+	{
+		this(channel, WINDOW_SIZE);
+	}
+
+	/**
+	 * @param channel
+	 * @param lazy If true and the file fits into a single mapping then it is mapped
+	 * as one window so that sub-structures can be decoded lazily.
+	 * @throws IOException
+	 */
+	KVSMappedDecoder(FileChannel channel, boolean lazy) throws IOException
+	{
+		this(channel, lazy && channel.size()<=Integer.MAX_VALUE ? Integer.MAX_VALUE : WINDOW_SIZE);
+		this.lazy = lazy;
+	}
+
+	KVSMappedDecoder(FileChannel channel, long windowSize) throws IOException
+	{
+		this(channel, 0, channel.size(), windowSize);
+	}
+
+	/**
+	 * Decode only the bytes between start and end of the file
+	 * @param channel
+	 * @param start
+	 * @param end
+	 * @param windowSize
+	 */
+	KVSMappedDecoder(FileChannel channel, long start, long end, long windowSize)
+	{
+		super(new byte[0]);
+		this.channel = channel;
+		this.start = start;
+		this.end = end;
+		this.windowSize = windowSize;
+		this.offset = start;
+	}
+
+	@Override
+	boolean isLazy()
+	{
+		// Lazy structures keep a reference to the window, so all of the file has to be in one window
+		return lazy && end - start<=windowSize;
+	}
+
+	@Override
+	protected boolean fill() throws IOException
+	{
+		if(offset>=end) return false;
+
+		int length = (int) Math.min(windowSize, end - offset);
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		base = offset;
+		offset += length;
+		pos = 0;
+		limit = length;
+		return true;
+	}
+}
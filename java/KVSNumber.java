@@ -0,0 +1,279 @@
+package slite.lib.java;
+
+/**
+ * A primitive value stored as a number instead of as text. It's created by the
+ * typed setters such as KVS.setLong and encodes to exactly the same text as the
+ * number's toString(). The numeric getters read it without parsing anything.
+ * <p>
+ * This class also holds the parsers used by the numeric getters. They return the
+ * default value instead of throwing an exception when the text is not a number,
+ * and accept exactly the same text as Long.parseLong and Double.parseDouble do
+ * after trimming.
+ * </p>
+ * <p>
+ * Decoded values stay text and are parsed by every getter call, the parsed
+ * number is not kept in their place. Reading a tree never changes it, which
+ * keeps a frozen tree safe to read from many threads, and getNative() and
+ * values() keep returning the text that was decoded.
+ * </p>
+ */
+final class KVSNumber extends Number
+{
+	private static final long serialVersionUID = 1L;
+
+	private final long longValue;
+	private final double doubleValue;
+	private final boolean decimal;
+
+	KVSNumber(long value)
+	{
+		this.longValue = value;
+		this.doubleValue = value;
+		this.decimal = false;
+	}
+
+	KVSNumber(double value)
+	{
+		this.longValue = (long) value;
+		this.doubleValue = value;
+		this.decimal = true;
+	}
+
+	/**
+	 * @return true if this is a double and not a long
+	 */
+	boolean isDecimal()
+	{
+		return this.decimal;
+	}
+
+	@Override
+	public int intValue()
+	{
+		return (int) this.longValue;
+	}
+
+	@Override
+	public long longValue()
+	{
+		return this.longValue;
+	}
+
+	@Override
+	public float floatValue()
+	{
+		return (float) this.doubleValue;
+	}
+
+	@Override
+	public double doubleValue()
+	{
+		return this.doubleValue;
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.decimal ? Double.toString(this.doubleValue) : Long.toString(this.longValue);
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		if(!(obj instanceof KVSNumber)) return false;
+		KVSNumber other = (KVSNumber) obj;
+		return this.decimal==other.decimal && (this.decimal
+				? Double.doubleToLongBits(this.doubleValue)==Double.doubleToLongBits(other.doubleValue)
+				: this.longValue==other.longValue);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return this.decimal ? Double.hashCode(this.doubleValue) : Long.hashCode(this.longValue);
+	}
+
+	/**
+	 * Converts a value to a long the same way Long.parseLong(value.toString().trim())
+	 * would, but without building strings or throwing exceptions.
+	 * @param value A String, a KVS or any other object stored in a KVS
+	 * @param min The smallest value allowed
+	 * @param max The largest value allowed
+	 * @param defaultValue Returned if the value is not a whole number between min and max
+	 * @return
+	 */
+	static long toLong(Object value, long min, long max, long defaultValue)
+	{
+		long result;
+		if(value instanceof String)
+			return parseLong((String) value, min, max, defaultValue);
+		else if(value instanceof KVSNumber && !((KVSNumber) value).decimal)
+			result = ((KVSNumber) value).longValue;
+		else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			result = ((Number) value).longValue();
+		else if(value==null || value instanceof KVS) // an encoded structure is never a number
+			return defaultValue;
+		else
+			return parseLong(value.toString(), min, max, defaultValue);
+
+		return result<min || result>max ? defaultValue : result;
+	}
+
+	/**
+	 * Converts a value to a double the same way Double.parseDouble(value.toString().trim())
+	 * would, but without throwing exceptions.
+	 * @param value A String, a KVS or any other object stored in a KVS
+	 * @param defaultValue Returned if the value is not a number
+	 * @return
+	 */
+	static double toDouble(Object value, double defaultValue)
+	{
+		if(value instanceof String)
+			return isDecimal((String) value) ? Double.parseDouble((String) value) : defaultValue;
+		else if(value instanceof KVSNumber)
+			return ((KVSNumber) value).doubleValue;
+		else if(value instanceof Double || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return ((Number) value).doubleValue(); // the same as parsing the decimal text of these
+		else if(value==null || value instanceof KVS)
+			return defaultValue;
+
+		String text = value.toString();
+		return isDecimal(text) ? Double.parseDouble(text) : defaultValue;
+	}
+
+	/**
+	 * Converts a value to a float the same way Float.parseFloat(value.toString().trim())
+	 * would, but without throwing exceptions.
+	 * @param value A String, a KVS or any other object stored in a KVS
+	 * @param defaultValue Returned if the value is not a number
+	 * @return
+	 */
+	static float toFloat(Object value, float defaultValue)
+	{
+		if(value instanceof String)
+			return isDecimal((String) value) ? Float.parseFloat((String) value) : defaultValue;
+		else if(value instanceof KVSNumber && !((KVSNumber) value).decimal)
+			return (float) ((KVSNumber) value).longValue;
+		else if(value instanceof Float || value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return ((Number) value).floatValue();
+		else if(value==null || value instanceof KVS)
+			return defaultValue;
+
+		// rounding a double to a float can differ from parsing its text straight to a float
+		String text = value.toString();
+		return isDecimal(text) ? Float.parseFloat(text) : defaultValue;
+	}
+
+	/**
+	 * Parses the text like Long.parseLong(text.trim()) does, including the range checks
+	 * done by Integer.parseInt, Short.parseShort and Byte.parseByte.
+	 */
+	static long parseLong(String text, long min, long max, long defaultValue)
+	{
+		int start = 0;
+		int end = text.length();
+		while(start<end && text.charAt(start) <= ' ') start++;
+		while(end>start && text.charAt(end-1) <= ' ') end--;
+		if(start==end) return defaultValue;
+
+		boolean negative = false;
+		char c = text.charAt(start);
+		if(c=='-' || c=='+')
+		{
+			negative = c=='-';
+			if(++start==end) return defaultValue;
+		}
+
+		// accumulate negatively so that Long.MIN_VALUE fits
+		long result = 0;
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multiplyLimit = limit / 10;
+		int digit;
+		for(int i=start;i<end;i++)
+		{
+			digit = Character.digit(text.charAt(i), 10);
+			if(digit<0 || result<multiplyLimit) return defaultValue;
+			result *= 10;
+			if(result<limit + digit) return defaultValue;
+			result -= digit;
+		}
+
+		result = negative ? result : -result;
+		return result<min || result>max ? defaultValue : result;
+	}
+
+	/**
+	 * Checks that Double.parseDouble and Float.parseFloat will accept the text,
+	 * so that they can be called without having to catch an exception.
+	 */
+	static boolean isDecimal(String text)
+	{
+		int start = 0;
+		int end = text.length();
+		while(start<end && text.charAt(start) <= ' ') start++;
+		while(end>start && text.charAt(end-1) <= ' ') end--;
+		if(start==end) return false;
+
+		int i = start;
+		char c = text.charAt(i);
+		if(c=='-' || c=='+') i++;
+		if(text.startsWith("NaN", i)) return i + 3 == end;
+		if(text.startsWith("Infinity", i)) return i + 8 == end;
+
+		c = end - i > 1 ? text.charAt(i+1) : 0;
+		if(i<end && text.charAt(i)=='0' && (c=='x' || c=='X')) return isHexDecimal(text, i + 2, end);
+
+		int digits = 0;
+		while(i<end && isDigit(text.charAt(i))) { i++; digits++; }
+		if(i<end && text.charAt(i)=='.')
+		{
+			i++;
+			while(i<end && isDigit(text.charAt(i))) { i++; digits++; }
+		}
+		if(digits==0) return false;
+
+		if(i<end && (text.charAt(i)=='e' || text.charAt(i)=='E'))
+		{
+			i++;
+			if(i<end && (text.charAt(i)=='-' || text.charAt(i)=='+')) i++;
+			int exponent = i;
+			while(i<end && isDigit(text.charAt(i))) i++;
+			if(i==exponent) return false;
+		}
+
+		return isSuffix(text, i, end);
+	}
+
+	// 0x already read, then hex digits with an optional point, and a required binary exponent
+	private static boolean isHexDecimal(String text, int i, int end)
+	{
+		int digits = 0;
+		while(i<end && Character.digit(text.charAt(i), 16)>=0 && text.charAt(i)<0x80) { i++; digits++; }
+		if(i<end && text.charAt(i)=='.')
+		{
+			i++;
+			while(i<end && Character.digit(text.charAt(i), 16)>=0 && text.charAt(i)<0x80) { i++; digits++; }
+		}
+		if(digits==0 || i==end || (text.charAt(i)!='p' && text.charAt(i)!='P')) return false;
+
+		i++;
+		if(i<end && (text.charAt(i)=='-' || text.charAt(i)=='+')) i++;
+		int exponent = i;
+		while(i<end && isDigit(text.charAt(i))) i++;
+		if(i==exponent) return false;
+
+		return isSuffix(text, i, end);
+	}
+
+	private static boolean isSuffix(String text, int i, int end)
+	{
+		if(i==end) return true;
+		char c = text.charAt(i);
+		return i + 1 == end && (c=='f' || c=='F' || c=='d' || c=='D');
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c>='0' && c<='9';
+	}
+}
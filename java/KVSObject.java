@@ -0,0 +1,27 @@
+package slite.lib.java;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class that KVSProcessor generates a codec for. The codec is named
+ * after the class with KVSCodec appended, with the names of enclosing classes
+ * joined by _, and is put into the same package. For example Person gets
+ * PersonKVSCodec and Order.Line gets Order_LineKVSCodec.
+ * <p>
+ * Every field that is neither static nor transient becomes a key, named after
+ * the field unless KVSField gives it another name. A private field needs a
+ * getter and a setter. The class needs a constructor without parameters that
+ * is not private. See KVSProcessor for the field types that can be used.
+ * </p>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface KVSObject
+{
+
+}
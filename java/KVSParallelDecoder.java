@@ -0,0 +1,249 @@
+package slite.lib.java;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Decodes a file of chained KVS structures on several threads. One quick pass
+ * over the bytes finds where the top-level pairs start and end. It only tracks
+ * the [ ] depth and the ;; escape, and counts the top-level auto keys. The file
+ * is then cut at pair boundaries into chunks that are decoded at the same time,
+ * each chunk starting its auto keys where the pairs before it left off. The
+ * decoded chunks are put into the target in file order. The result is exactly
+ * what decoding the file on one thread gives.
+ */
+class KVSParallelDecoder
+{
+	// Files smaller than this are decoded on the calling thread
+	static final long MIN_CHUNK_SIZE = 4L << 20; // 4 MB
+
+	// Aim for a few chunks per thread, so that a slow chunk doesn't hold the others up
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final int KEY = 0;
+	private static final int META = 1;
+	private static final int VALUE = 2;
+	private static final int VALUE_SEMICOLON = 3; // a ; has been read in a value and the next byte decides if it's an escape
+
+	/**
+	 * A range of the file holding whole top-level pairs
+	 */
+	private static final class Chunk
+	{
+		final long start;
+		final long end;
+		final int autoId; // the first top-level auto key in the chunk
+		KVS kvs; // what the chunk was decoded into
+		int count; // the number of pairs decoded
+
+		Chunk(long start, long end, int autoId)
+		{
+			this.start = start;
+			this.end = end;
+			this.autoId = autoId;
+		}
+	}
+
+	private final FileChannel channel;
+	private final ForkJoinPool pool;
+	private final KVSKeyTable keys;
+	private final KVSKeyTable values;
+
+	KVSParallelDecoder(FileChannel channel, ForkJoinPool pool, KVSKeyTable keys, KVSKeyTable values)
+	{
+		this.channel = channel;
+		this.pool = pool;
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * Decode the whole file into the target
+	 * @param target
+	 * @return The number of top-level pairs decoded
+	 * @throws Exception EOFException if there were no pairs at all, or whatever decoding a chunk threw
+	 */
+	int decode(KVS target) throws Exception
+	{
+		int threads = this.pool.getParallelism();
+		if(threads<=1) return this.decode(target, Long.MAX_VALUE); // one chunk, decoded on this thread
+		return this.decode(target, Math.max(MIN_CHUNK_SIZE, this.channel.size() / ((long) threads * CHUNKS_PER_THREAD)));
+	}
+
+	/**
+	 * @param target
+	 * @param chunkSize The smallest number of bytes to decode on one thread
+	 * @return The number of top-level pairs decoded
+	 * @throws Exception
+	 */
+	int decode(KVS target, long chunkSize) throws Exception
+	{
+		long size = this.channel.size();
+		List<Chunk> chunks = size<=chunkSize ? List.of(new Chunk(0, size, 0)) : this.split(chunkSize);
+
+		int count = 0;
+		if(chunks.size()<=1) // not worth handing to other threads
+		{
+			for(Chunk chunk : chunks) count += this.decode(chunk, target);
+		}
+		else
+		{
+			// The first chunk goes straight into the target, exactly as if it was decoded on its own
+			List<ForkJoinTask<Chunk>> tasks = new ArrayList<>(chunks.size());
+			for(Chunk chunk : chunks)
+				tasks.add(this.pool.submit(() ->
+				{
+					chunk.kvs = chunk.start==0 ? target : new KVS();
+					chunk.count = this.decode(chunk, chunk.kvs);
+					return chunk;
+				}));
+
+			// put the other chunks' pairs in file order, so that later keys overwrite earlier ones like they do on one thread
+			Chunk chunk;
+			for(ForkJoinTask<Chunk> task : tasks)
+			{
+				try
+				{
+					chunk = task.get();
+				}
+				catch(ExecutionException e)
+				{
+					for(ForkJoinTask<Chunk> other : tasks) other.cancel(false);
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+
+				if(chunk.kvs!=target)
+				{
+					target.changed();
+					for(Entry<String, Object> entry : chunk.kvs.entries()) target.map().put(entry.getKey(), entry.getValue());
+				}
+				count += chunk.count;
+				chunk.kvs = null;
+			}
+		}
+
+		if(count==0) throw new EOFException();
+		return count;
+	}
+
+	private int decode(Chunk chunk, KVS target)
+	{
+		KVSMappedDecoder buffer = new KVSMappedDecoder(this.channel, chunk.start, chunk.end, KVSMappedDecoder.WINDOW_SIZE);
+		buffer.keys = this.keys;
+		buffer.values = this.values;
+		return target.fromBuffer(buffer, -1, chunk.autoId);
+	}
+
+	/**
+	 * Scans the file for top-level pair boundaries and groups the pairs into
+	 * chunks of at least chunkSize bytes. Scanning stops at a ] that doesn't close
+	 * any structure, since decoding stops there too.
+	 */
+	private List<Chunk> split(long chunkSize) throws IOException
+	{
+		List<Chunk> chunks = new ArrayList<>();
+		long size = this.channel.size();
+		long chunkStart = 0;
+		int chunkAutoId = 0;
+
+		int state = KEY;
+		int depth = 0;
+		int autoId = 0; // top-level auto keys read so far
+		boolean emptyKey = true; // no byte of the current key has been more than whitespace
+		long boundary = -1; // the end of the top-level pair that was just completed
+		int boundaryAutoId = 0; // the top-level auto keys read up to the boundary
+		long end = size;
+
+		scan:
+		for(long offset=0;offset<size;)
+		{
+			int length = (int) Math.min(KVSMappedDecoder.WINDOW_SIZE, size - offset);
+			MappedByteBuffer window = this.channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			for(int i=0;i<length;i++)
+			{
+				int b = window.get(i);
+				if(state==VALUE_SEMICOLON)
+				{
+					if(b==';') // escaped ;
+					{
+						state = VALUE;
+						continue;
+					}
+					state = KEY;
+					emptyKey = true;
+					if(depth==0)
+					{
+						boundary = offset + i;
+						boundaryAutoId = autoId;
+					}
+					// the byte is the start of the next key
+				}
+
+				switch(state)
+				{
+					case KEY:
+						if(b==']')
+						{
+							if(depth==0) // nothing to close, so this is the end of the input
+							{
+								end = offset + i;
+								break scan;
+							}
+							emptyKey = true;
+							if(--depth==0)
+							{
+								boundary = offset + i + 1;
+								boundaryAutoId = autoId;
+							}
+						}
+						else if(b=='[' || b=='=' || b=='~')
+						{
+							if(depth==0 && emptyKey) autoId++;
+							emptyKey = true;
+							if(b=='~') state = META;
+							else if(b=='=') state = VALUE;
+							else depth++;
+						}
+						else if((b & 0xFF) > ' ')
+							emptyKey = false;
+						break;
+					case META:
+						if(b=='=') state = VALUE;
+						else if(b=='[')
+						{
+							state = KEY;
+							depth++;
+						}
+						break;
+					case VALUE:
+						if(b==';') state = VALUE_SEMICOLON;
+						break;
+				}
+
+				// cut a chunk at the first pair boundary past the chunk size
+				if(boundary>=0)
+				{
+					if(boundary - chunkStart >= chunkSize)
+					{
+						chunks.add(new Chunk(chunkStart, boundary, chunkAutoId));
+						chunkStart = boundary;
+						chunkAutoId = boundaryAutoId;
+					}
+					boundary = -1;
+				}
+			}
+			offset += length;
+		}
+
+		if(chunkStart<end) chunks.add(new Chunk(chunkStart, end, chunkAutoId));
+		return chunks;
+	}
+}
@@ -0,0 +1,254 @@
+package slite.lib.java;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes a large KVS on several threads. The top-level pairs are cut into
+ * chunks of about the same amount of work, each chunk is encoded into its own
+ * buffer at the same time, and the buffers are written out in order. The auto
+ * keys are worked out on the calling thread first, since whether a key is
+ * written as an auto key depends on the pairs before it. The result is byte for
+ * byte what KVSEncoder writes on one thread.
+ */
+class KVSParallelEncoder
+{
+	// Documents with less work than this are encoded on the calling thread
+	static final long MIN_WEIGHT = 1 << 14;
+
+	// Aim for a few chunks per thread, so that a slow chunk doesn't hold the others up
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * A buffer whose bytes can be handed to a channel without copying them
+	 */
+	private static final class Buffer extends ByteArrayOutputStream
+	{
+		Buffer()
+		{
+			super(KVSEncoder.BUFFER_SIZE);
+		}
+
+		ByteBuffer toByteBuffer()
+		{
+			return ByteBuffer.wrap(this.buf, 0, this.count);
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final long minWeight;
+
+	KVSParallelEncoder(ForkJoinPool pool)
+	{
+		this(pool, MIN_WEIGHT);
+	}
+
+	/**
+	 * @param pool
+	 * @param minWeight The least work worth encoding on other threads, roughly the number of pairs
+	 */
+	KVSParallelEncoder(ForkJoinPool pool, long minWeight)
+	{
+		this.pool = pool;
+		this.minWeight = minWeight;
+	}
+
+	/**
+	 * Encode the KVS to the stream, see KVS.toStream(OutputStream, boolean, String)
+	 */
+	void write(KVS kvs, String wrapKey, boolean pretty, OutputStream out) throws Exception
+	{
+		List<Future<Buffer>> tasks = this.encode(kvs, wrapKey, pretty);
+		if(tasks==null)
+		{
+			KVSEncoder encoder = new KVSEncoder(out);
+			encoder.write(kvs, wrapKey, pretty);
+			encoder.flush();
+			return;
+		}
+
+		for(int i=0;i<tasks.size();i++)
+		{
+			this.join(tasks, i).writeTo(out);
+			tasks.set(i, null); // let the buffer go as soon as it's written
+		}
+		out.flush();
+	}
+
+	/**
+	 * Encode the KVS to the channel at its current position. Chunks that are
+	 * ready one after the other are written together with a gathering write.
+	 */
+	void write(KVS kvs, String wrapKey, boolean pretty, FileChannel channel) throws Exception
+	{
+		List<Future<Buffer>> tasks = this.encode(kvs, wrapKey, pretty);
+		if(tasks==null)
+		{
+			KVSEncoder encoder = new KVSEncoder(Channels.newOutputStream(channel));
+			encoder.write(kvs, wrapKey, pretty);
+			encoder.flush();
+			return;
+		}
+
+		List<ByteBuffer> ready = new ArrayList<>();
+		for(int i=0;i<tasks.size();)
+		{
+			// wait for the next chunk, then take every chunk after it that is already done
+			ready.add(this.join(tasks, i).toByteBuffer());
+			tasks.set(i++, null);
+			while(i<tasks.size() && tasks.get(i).isDone())
+			{
+				ready.add(this.join(tasks, i).toByteBuffer());
+				tasks.set(i++, null);
+			}
+
+			ByteBuffer[] buffers = ready.toArray(new ByteBuffer[ready.size()]);
+			long remaining = 0;
+			for(ByteBuffer buffer : buffers) remaining += buffer.remaining();
+			while(remaining>0) remaining -= channel.write(buffers);
+			ready.clear();
+		}
+	}
+
+	/**
+	 * Starts encoding the chunks
+	 * @return The encoded chunks in output order, between what comes before and
+	 * after the pairs, or null if the KVS should be encoded on the calling thread
+	 */
+	private List<Future<Buffer>> encode(KVS kvs, String wrapKey, boolean pretty) throws IOException
+	{
+		int threads = this.pool.getParallelism();
+		if(threads<=1) return null;
+
+		int size = kvs.size();
+		if(size<2) return null;
+
+		// the keys exactly as the encoder would write them, and how much work each pair is
+		String[] keys = new String[size];
+		Object[] values = new Object[size];
+		long[] weights = new long[size];
+		KVSArrayMap array = kvs.array();
+		if(array!=null)
+		{
+			for(int i=0;i<size;i++)
+			{
+				keys[i] = "";
+				values[i] = array.element(i);
+			}
+		}
+		else
+		{
+			int autoId = 0;
+			int i = 0;
+			for(Entry<String,Object> entry : kvs.map().entrySet())
+			{
+				String key = entry.getKey();
+				if(KVSEncoder.isAutoKey(key, autoId))
+				{
+					key = "";
+					autoId++;
+				}
+				keys[i] = key;
+				values[i++] = entry.getValue();
+			}
+		}
+
+		long total = 0;
+		for(int i=0;i<size;i++)
+		{
+			weights[i] = weight(values[i], this.minWeight);
+			total += weights[i];
+		}
+		if(total<this.minWeight) return null;
+
+		int indent = pretty ? 0 : -1;
+		int indentSub = (indent < 0 ? -1 : (wrapKey!=null ? indent + 1 : indent));
+		long chunkWeight = Math.max(1, total / ((long) threads * CHUNKS_PER_THREAD));
+
+		List<Future<Buffer>> tasks = new ArrayList<>();
+		Buffer start = new Buffer();
+		KVSEncoder encoder = new KVSEncoder(start);
+		encoder.writeStart(wrapKey, indent);
+		encoder.flush();
+		tasks.add(CompletableFuture.completedFuture(start));
+
+		int from = 0;
+		long weight = 0;
+		for(int i=0;i<size;i++)
+		{
+			weight += weights[i];
+			if(weight>=chunkWeight || i==size - 1)
+			{
+				int chunkFrom = from;
+				int chunkTo = i + 1;
+				tasks.add(this.pool.submit(() ->
+				{
+					Buffer buffer = new Buffer();
+					KVSEncoder chunk = new KVSEncoder(buffer);
+					for(int j=chunkFrom;j<chunkTo;j++) chunk.writePair(keys[j], values[j], indentSub);
+					chunk.flush();
+					return buffer;
+				}));
+				from = chunkTo;
+				weight = 0;
+			}
+		}
+
+		Buffer end = new Buffer();
+		encoder = new KVSEncoder(end);
+		encoder.writeEnd(wrapKey, indent);
+		encoder.flush();
+		tasks.add(CompletableFuture.completedFuture(end));
+		return tasks;
+	}
+
+	/**
+	 * Roughly how much work encoding the value is. A structure is weighed by
+	 * everything in it, but only until it reaches the limit, since a pair that
+	 * heavy is a chunk of its own anyway. A lazily decoded structure is weighed
+	 * by its bytes, so that it's decoded by the thread encoding it.
+	 */
+	private static long weight(Object value, long limit)
+	{
+		if(value!=null && value.getClass().equals(KVS.class))
+		{
+			int lazy = ((KVS)value).lazyLength();
+			if(lazy>=0) return 1 + lazy / 32;
+
+			long weight = 1;
+			for(Object child : ((KVS)value).map().values())
+			{
+				if(weight>=limit) break;
+				weight += weight(child, limit - weight);
+			}
+			return weight;
+		}
+		if(value instanceof String) return 1 + ((String)value).length() / 32;
+		if(value instanceof KVSBinary) return 1 + ((KVSBinary)value).length() / 24;
+		return 1;
+	}
+
+	private Buffer join(List<Future<Buffer>> tasks, int i) throws Exception
+	{
+		try
+		{
+			return tasks.get(i).get();
+		}
+		catch(ExecutionException e)
+		{
+			for(Future<Buffer> other : tasks) if(other!=null) other.cancel(false);
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+}
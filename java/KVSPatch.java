@@ -0,0 +1,181 @@
+package slite.lib.java;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Works out and applies the changes between two structures, see KVS.diff() and
+ * KVS.apply(). A patch is itself a KVS, a list of operations that each hold
+ * the key path they work on as a list of keys:
+ * <pre>
+ * [op=set;path[=car;=0;=make;]value=vw;]
+ * [op=set;path[=pets;=1;]value[name=Tom;]]
+ * [op=remove;path[=owner;]]
+ * [op=order;path[=car;]keys[=1;=0;]]
+ * </pre>
+ * An order operation gives the order of every key of the structure at its path,
+ * and comes after all the other operations on the keys of that structure.
+ */
+final class KVSPatch
+{
+	static final String OP = "op";
+	static final String PATH = "path";
+	static final String VALUE = "value";
+	static final String KEYS = "keys";
+
+	static final String SET = "set";
+	static final String REMOVE = "remove";
+	static final String ORDER = "order";
+
+	private KVSPatch()
+	{
+
+	}
+
+	/**
+	 * Adds the operations that turn a into b to the patch
+	 * @param a
+	 * @param b
+	 * @param path The keys of a and b, which is only as long as depth
+	 * @param depth
+	 * @param patch
+	 */
+	static void diff(KVS a, KVS b, String[] path, int depth, KVS patch)
+	{
+		Map<String, Object> from = a.map();
+		Map<String, Object> to = b.map();
+		if(depth==path.length) path = Arrays.copyOf(path, depth * 2 + 4);
+
+		for(Entry<String, Object> entry : to.entrySet())
+		{
+			String key = entry.getKey();
+			Object value = entry.getValue();
+			Object current = from.get(key);
+			if(current==value && value!=null) continue; // shared, for example by the versions of a PersistentKVS
+			path[depth] = key;
+			if(isStructure(value) && isStructure(current))
+				diff((KVS) current, (KVS) value, path, depth + 1, patch);
+			else if(current==null || isStructure(value) || isStructure(current) || !text(value).equals(text(current)))
+			{
+				if(isStructure(value)) value = ((KVS) value).copy(true);
+				else if(value==null) value = text(value); // encoded as null
+				patch.add(operation(SET, path, depth + 1).set(value, VALUE));
+			}
+		}
+
+		for(String key : from.keySet())
+		{
+			if(to.containsKey(key)) continue;
+			path[depth] = key;
+			patch.add(operation(REMOVE, path, depth + 1));
+		}
+
+		// the keys that are left keep their order and the new ones are added to the end, which has to match b
+		if(!isSameOrder(from, to))
+		{
+			KVS keys = new KVS();
+			for(String key : to.keySet()) keys.add(key);
+			patch.add(operation(ORDER, path, depth).set(keys, KEYS));
+		}
+	}
+
+	/**
+	 * Applies the operations of the patch to the structure, in order
+	 * @throws IllegalArgumentException If the patch holds something that is not an operation
+	 */
+	static void apply(KVS kvs, KVS patch)
+	{
+		for(Object value : patch.values())
+		{
+			if(!isStructure(value)) throw new IllegalArgumentException("Not a patch operation: " + value);
+			KVS operation = (KVS) value;
+			Object op = operation.getNative(OP);
+			Object path = operation.getNative(PATH);
+			if(!isStructure(path)) throw new IllegalArgumentException("A patch operation has no path");
+			String[] keys = keys((KVS) path);
+
+			if(SET.equals(op))
+			{
+				Object set = operation.getNative(VALUE);
+				if(set==null || keys.length==0) throw new IllegalArgumentException("A set operation needs a value and a path");
+				kvs.set(isStructure(set) ? ((KVS) set).copy(true) : set, keys);
+			}
+			else if(REMOVE.equals(op))
+				kvs.remove(keys);
+			else if(ORDER.equals(op))
+			{
+				Object order = operation.getNative(KEYS);
+				Object target = keys.length==0 ? kvs : kvs.getNative(keys);
+				if(!isStructure(order)) throw new IllegalArgumentException("An order operation needs its keys");
+				if(isStructure(target)) reorder((KVS) target, keys((KVS) order));
+			}
+			else
+				throw new IllegalArgumentException("Unknown patch operation " + op);
+		}
+	}
+
+	/**
+	 * Puts the keys of the structure into the given order. Keys that are not
+	 * given keep their order, after the ones that are.
+	 */
+	private static void reorder(KVS kvs, String[] keys)
+	{
+		Map<String, Object> map = kvs.map();
+		Map<String, Object> ordered = new LinkedHashMap<>();
+		for(String key : keys)
+		{
+			Object value = map.get(key);
+			if(value!=null) ordered.put(key, value);
+		}
+		if(ordered.size()<map.size())
+			for(Entry<String, Object> entry : map.entrySet()) ordered.putIfAbsent(entry.getKey(), entry.getValue());
+		kvs.changed();
+		map.clear();
+		map.putAll(ordered);
+	}
+
+	/**
+	 * @return true if the keys of from, after the keys that are not in to are
+	 * removed and those that are only in to are added, are in the order of to
+	 */
+	private static boolean isSameOrder(Map<String, Object> from, Map<String, Object> to)
+	{
+		Iterator<String> expected = to.keySet().iterator();
+		for(String key : from.keySet())
+			if(to.containsKey(key) && !key.equals(expected.next())) return false;
+		while(expected.hasNext())
+			if(from.containsKey(expected.next())) return false; // a key both have would have to come later
+		return true;
+	}
+
+	private static KVS operation(String op, String[] path, int length)
+	{
+		KVS keys = new KVS();
+		for(int i=0;i<length;i++) keys.add(path[i]);
+		return new KVS().set(op, OP).set(keys, PATH);
+	}
+
+	// the values as they are, without the trimming of getList()
+	private static String[] keys(KVS list)
+	{
+		List<String> keys = new ArrayList<>(list.size());
+		for(Object key : list.values()) keys.add(text(key));
+		return keys.toArray(new String[0]);
+	}
+
+	// only a plain KVS is encoded as a structure, anything else is encoded as its text
+	private static boolean isStructure(Object value)
+	{
+		return value!=null && value.getClass().equals(KVS.class);
+	}
+
+	private static String text(Object value)
+	{
+		return value instanceof String ? (String) value : String.valueOf(value);
+	}
+}
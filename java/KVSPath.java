@@ -0,0 +1,124 @@
+package slite.lib.java;
+
+import java.util.Arrays;
+
+/**
+ * An immutable key path that can be reused for any number of lookups. Every KVS
+ * accessor that takes a key path also takes a KVSPath, and those calls do not
+ * allocate anything, since there is no varargs array to build. That is all a
+ * path saves: the lookups still go key by key through each key's String hash,
+ * which the String computes once and keeps, the same as for String keys that
+ * are reused.
+ * <p>
+ * Keep paths that are read often in constants:
+ * <pre>
+ * static final KVSPath CAPACITY = KVSPath.parse("car/0/engine/capacity");
+ * ...
+ * int capacity = kvs.getInt(CAPACITY);
+ * </pre>
+ * </p>
+ */
+public final class KVSPath
+{
+	public static final char SEPARATOR = '/';
+
+	final String[] keys;
+	private final int hash; // of the whole path, for using paths as keys of a map
+
+	/**
+	 * Construct a path from its keys. Unlike parse(), keys may contain the separator.
+	 * @param keys The key path
+	 */
+	public KVSPath(String... keys)
+	{
+		this.keys = keys.clone();
+		int hash = 1;
+		for(String key : this.keys) hash = 31 * hash + key.hashCode();
+		this.hash = hash;
+	}
+
+	/**
+	 * Parse a path of keys separated by a /, for example "car/0/engine/capacity".
+	 * Every / separates two keys, so "a//b" has an empty key in the middle. An
+	 * empty string is the empty path.
+	 * @param path
+	 * @return
+	 */
+	public static KVSPath parse(String path)
+	{
+		if(path.isEmpty()) return new KVSPath();
+
+		int count = 1;
+		for(int i=0;i<path.length();i++)
+			if(path.charAt(i)==SEPARATOR) count++;
+
+		String[] keys = new String[count];
+		int start = 0;
+		int end;
+		for(int i=0;i<count;i++)
+		{
+			end = path.indexOf(SEPARATOR, start);
+			if(end<0) end = path.length();
+			keys[i] = path.substring(start, end);
+			start = end + 1;
+		}
+		return new KVSPath(keys);
+	}
+
+	/**
+	 * @return The number of keys in the path
+	 */
+	public int size()
+	{
+		return this.keys.length;
+	}
+
+	/**
+	 * @param index
+	 * @return The key at the index
+	 */
+	public String get(int index)
+	{
+		return this.keys[index];
+	}
+
+	/**
+	 * @return A copy of the keys
+	 */
+	public String[] keys()
+	{
+		return this.keys.clone();
+	}
+
+	/**
+	 * @param key
+	 * @return A new path with the key added to the end of this one
+	 */
+	public KVSPath child(String key)
+	{
+		String[] keys = Arrays.copyOf(this.keys, this.keys.length + 1);
+		keys[this.keys.length] = key;
+		return new KVSPath(keys);
+	}
+
+	@Override
+	public boolean equals(Object obj)
+	{
+		return obj instanceof KVSPath && Arrays.equals(this.keys, ((KVSPath) obj).keys);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return this.hash;
+	}
+
+	/**
+	 * @return The keys separated by a /
+	 */
+	@Override
+	public String toString()
+	{
+		return String.join("/", this.keys);
+	}
+}
@@ -0,0 +1,455 @@
+package slite.lib.java;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map that keeps insertion order like a LinkedHashMap, where
+ * with() and without() return a new map that shares almost everything with the
+ * old one. Both cost O(log n) instead of the O(n) of copying.
+ * <p>
+ * The entries are kept in insertion order in a trie of 32 slot arrays, so
+ * appending or replacing an entry only copies the arrays on the way to its slot.
+ * A removed entry leaves an empty slot behind, and the slots are packed again
+ * once more than half of them are empty. A hash array mapped trie (HAMT) finds
+ * the slot of a key, using 5 bits of the key's hash for each level.
+ * </p>
+ * The map can't be changed in place, put() and remove() throw an UnsupportedOperationException.
+ */
+final class KVSPersistentMap extends AbstractMap<String, Object>
+{
+	private static final int BITS = 5;
+	private static final int WIDTH = 1 << BITS;
+	private static final int MASK = WIDTH - 1;
+
+	static final KVSPersistentMap EMPTY = new KVSPersistentMap(null, new Object[WIDTH], 0, 0, 0);
+
+	/**
+	 * A HAMT node. For each hash fragment in the bitmap the array holds either a
+	 * key and its slot, or null and the node for the next level. Below the last
+	 * level, keys with the same hash are listed one after the other and the
+	 * bitmap is not used.
+	 */
+	private static final class Node
+	{
+		final int bitmap;
+		final Object[] array;
+
+		Node(int bitmap, Object[] array)
+		{
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+	}
+
+	private final Node index; // null if there are no keys
+	private final Object[] slots; // the root of the slot trie, the leaves hold entries or null for removed ones
+	private final int shift; // BITS times the levels of the slot trie above the leaves
+	private final int count; // slots used, including empty ones
+	private final int size;
+
+	private KVSPersistentMap(Node index, Object[] slots, int shift, int count, int size)
+	{
+		this.index = index;
+		this.slots = slots;
+		this.shift = shift;
+		this.count = count;
+		this.size = size;
+	}
+
+	/**
+	 * Build a map of the keys and values in order, in one go
+	 * @param keys Must all be different
+	 * @param values
+	 * @param size The number of keys to take
+	 * @return
+	 */
+	static KVSPersistentMap of(String[] keys, Object[] values, int size)
+	{
+		if(size==0) return EMPTY;
+
+		// the leaves, then each level above them, until there is only one node
+		Object[] level = new Object[(size + MASK) >>> BITS];
+		for(int i=0;i<size;i++)
+		{
+			if((i & MASK)==0) level[i >>> BITS] = new Object[WIDTH];
+			((Object[]) level[i >>> BITS])[i & MASK] = new SimpleImmutableEntry<>(keys[i], values[i]);
+		}
+		int shift = 0;
+		while(level.length>1)
+		{
+			Object[] parents = new Object[(level.length + MASK) >>> BITS];
+			for(int i=0;i<level.length;i++)
+			{
+				if((i & MASK)==0) parents[i >>> BITS] = new Object[WIDTH];
+				((Object[]) parents[i >>> BITS])[i & MASK] = level[i];
+			}
+			level = parents;
+			shift += BITS;
+		}
+
+		int[] hashes = new int[size];
+		int[] members = new int[size];
+		for(int i=0;i<size;i++)
+		{
+			hashes[i] = keys[i].hashCode();
+			members[i] = i;
+		}
+		return new KVSPersistentMap(build(keys, hashes, members, 0, size, 0), (Object[]) level[0], shift, size, size);
+	}
+
+	/**
+	 * @return The number of keys
+	 */
+	@Override
+	public int size()
+	{
+		return this.size;
+	}
+
+	@Override
+	public boolean containsKey(Object key)
+	{
+		return key instanceof String && this.slot((String) key)>=0;
+	}
+
+	@Override
+	public Object get(Object key)
+	{
+		if(!(key instanceof String)) return null;
+		int slot = this.slot((String) key);
+		return slot<0 ? null : this.entry(slot).getValue();
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return A map with the key set to the value. An existing key keeps its place
+	 * in the order. This map itself if the key already holds exactly that value.
+	 */
+	KVSPersistentMap with(String key, Object value)
+	{
+		int slot = this.slot(key);
+		SimpleImmutableEntry<String, Object> entry = new SimpleImmutableEntry<>(key, value);
+		if(slot>=0)
+		{
+			if(this.entry(slot).getValue()==value) return this;
+			return new KVSPersistentMap(this.index, set(this.slots, this.shift, slot, entry), this.shift, this.count, this.size);
+		}
+
+		Node index = put(this.index, key.hashCode(), key, this.count, 0);
+		if(this.count==WIDTH << this.shift) // the trie is full, so it gets another level
+		{
+			Object[] root = new Object[WIDTH];
+			root[0] = this.slots;
+			root[1] = path(this.shift, entry);
+			return new KVSPersistentMap(index, root, this.shift + BITS, this.count + 1, this.size + 1);
+		}
+		return new KVSPersistentMap(index, append(this.slots, this.shift, this.count, entry), this.shift, this.count + 1, this.size + 1);
+	}
+
+	/**
+	 * @param key
+	 * @return A map without the key, or this map itself if it doesn't have the key
+	 */
+	KVSPersistentMap without(String key)
+	{
+		int slot = this.slot(key);
+		if(slot<0) return this;
+		if(this.size==1) return EMPTY;
+
+		KVSPersistentMap map = new KVSPersistentMap(remove(this.index, key.hashCode(), key, 0), set(this.slots, this.shift, slot, null), this.shift, this.count, this.size - 1);
+		return map.size<map.count / 2 ? map.pack() : map;
+	}
+
+	/**
+	 * @return The same map without any empty slots
+	 */
+	private KVSPersistentMap pack()
+	{
+		String[] keys = new String[this.size];
+		Object[] values = new Object[this.size];
+		int i = 0;
+		for(Entry<String, Object> entry : this.entrySet())
+		{
+			keys[i] = entry.getKey();
+			values[i++] = entry.getValue();
+		}
+		return of(keys, values, this.size);
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet()
+	{
+		return new AbstractSet<Entry<String, Object>>()
+		{
+			@Override
+			public Iterator<Entry<String, Object>> iterator()
+			{
+				return new Iterator<Entry<String, Object>>()
+				{
+					private Object[] leaf = null;
+					private int next = this.skip(0);
+
+					// the first slot from i on that holds an entry
+					private int skip(int i)
+					{
+						for(;i<KVSPersistentMap.this.count;i++)
+						{
+							if(this.leaf==null || (i & MASK)==0) this.leaf = KVSPersistentMap.this.leaf(i);
+							if(this.leaf[i & MASK]!=null) return i;
+						}
+						return i;
+					}
+
+					@Override
+					public boolean hasNext()
+					{
+						return this.next<KVSPersistentMap.this.count;
+					}
+
+					@SuppressWarnings("unchecked")
+					@Override
+					public Entry<String, Object> next()
+					{
+						if(!this.hasNext()) throw new NoSuchElementException();
+						Entry<String, Object> entry = (Entry<String, Object>) this.leaf[this.next & MASK];
+						this.next = this.skip(this.next + 1);
+						return entry;
+					}
+				};
+			}
+
+			@Override
+			public int size()
+			{
+				return KVSPersistentMap.this.size;
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private Entry<String, Object> entry(int slot)
+	{
+		return (Entry<String, Object>) this.leaf(slot)[slot & MASK];
+	}
+
+	private Object[] leaf(int slot)
+	{
+		Object[] node = this.slots;
+		for(int level=this.shift;level>0;level-=BITS) node = (Object[]) node[(slot >>> level) & MASK];
+		return node;
+	}
+
+	/**
+	 * @return The slot of the key, or -1 if the map doesn't have it
+	 */
+	private int slot(String key)
+	{
+		Node node = this.index;
+		int hash = key.hashCode();
+		for(int shift=0;node!=null;shift+=BITS)
+		{
+			if(shift>=32) // keys with the same hash
+			{
+				for(int i=0;i<node.array.length;i+=2)
+					if(key.equals(node.array[i])) return (Integer) node.array[i + 1];
+				return -1;
+			}
+
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if((node.bitmap & bit)==0) return -1;
+			int i = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+			Object found = node.array[i];
+			if(found==null)
+				node = (Node) node.array[i + 1];
+			else
+				return key.equals(found) ? (Integer) node.array[i + 1] : -1;
+		}
+		return -1;
+	}
+
+	// The slot trie
+
+	private static Object[] set(Object[] node, int shift, int slot, Object value)
+	{
+		Object[] copy = node.clone();
+		if(shift==0)
+			copy[slot & MASK] = value;
+		else
+		{
+			int i = (slot >>> shift) & MASK;
+			copy[i] = set((Object[]) node[i], shift - BITS, slot, value);
+		}
+		return copy;
+	}
+
+	private static Object[] append(Object[] node, int shift, int slot, Object value)
+	{
+		Object[] copy = node.clone();
+		if(shift==0)
+			copy[slot & MASK] = value;
+		else
+		{
+			int i = (slot >>> shift) & MASK;
+			copy[i] = node[i]==null ? path(shift - BITS, value) : append((Object[]) node[i], shift - BITS, slot, value);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return A new branch holding only the value, in its first slot
+	 */
+	private static Object[] path(int shift, Object value)
+	{
+		Object[] node = new Object[WIDTH];
+		node[0] = shift==0 ? value : path(shift - BITS, value);
+		return node;
+	}
+
+	// The HAMT
+
+	/**
+	 * @return A copy of the node with the key added, the key must not be in it yet
+	 */
+	private static Node put(Node node, int hash, String key, int slot, int shift)
+	{
+		if(node==null) return new Node(1 << (hash & MASK), new Object[]{key, slot});
+		if(shift>=32) return new Node(0, insert(node.array, node.array.length, key, slot));
+
+		int bit = 1 << ((hash >>> shift) & MASK);
+		int i = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+		if((node.bitmap & bit)==0) return new Node(node.bitmap | bit, insert(node.array, i, key, slot));
+
+		Object[] array = node.array.clone();
+		Object found = array[i];
+		if(found==null)
+			array[i + 1] = put((Node) array[i + 1], hash, key, slot, shift + BITS);
+		else
+		{
+			// two keys share this fragment, so they move down a level
+			String other = (String) found;
+			array[i] = null;
+			array[i + 1] = pair(other, other.hashCode(), (Integer) node.array[i + 1], key, hash, slot, shift + BITS);
+		}
+		return new Node(node.bitmap, array);
+	}
+
+	private static Node pair(String key1, int hash1, int slot1, String key2, int hash2, int slot2, int shift)
+	{
+		if(shift>=32) return new Node(0, new Object[]{key1, slot1, key2, slot2});
+
+		int fragment1 = (hash1 >>> shift) & MASK;
+		int fragment2 = (hash2 >>> shift) & MASK;
+		if(fragment1==fragment2) return new Node(1 << fragment1, new Object[]{null, pair(key1, hash1, slot1, key2, hash2, slot2, shift + BITS)});
+		if(fragment1<fragment2) return new Node((1 << fragment1) | (1 << fragment2), new Object[]{key1, slot1, key2, slot2});
+		return new Node((1 << fragment1) | (1 << fragment2), new Object[]{key2, slot2, key1, slot1});
+	}
+
+	/**
+	 * @return A copy of the node without the key, or null if nothing is left. The key must be in it.
+	 */
+	private static Node remove(Node node, int hash, String key, int shift)
+	{
+		if(shift>=32)
+		{
+			if(node.array.length==2) return null;
+			for(int i=0;i<node.array.length;i+=2)
+				if(key.equals(node.array[i])) return new Node(0, delete(node.array, i));
+			return node;
+		}
+
+		int bit = 1 << ((hash >>> shift) & MASK);
+		int i = 2 * Integer.bitCount(node.bitmap & (bit - 1));
+		if(node.array[i]!=null) // the key itself
+			return node.bitmap==bit ? null : new Node(node.bitmap & ~bit, delete(node.array, i));
+
+		Node child = remove((Node) node.array[i + 1], hash, key, shift + BITS);
+		if(child==null) return node.bitmap==bit ? null : new Node(node.bitmap & ~bit, delete(node.array, i));
+
+		Object[] array = node.array.clone();
+		if(child.array.length==2 && child.array[0]!=null) // a single key left below, so it moves up
+		{
+			array[i] = child.array[0];
+			array[i + 1] = child.array[1];
+		}
+		else
+			array[i + 1] = child;
+		return new Node(node.bitmap, array);
+	}
+
+	/**
+	 * Builds the HAMT for the keys of members[from] to members[to - 1]
+	 */
+	private static Node build(String[] keys, int[] hashes, int[] members, int from, int to, int shift)
+	{
+		if(shift>=32)
+		{
+			Object[] array = new Object[2 * (to - from)];
+			for(int i=from;i<to;i++)
+			{
+				array[2 * (i - from)] = keys[members[i]];
+				array[2 * (i - from) + 1] = members[i];
+			}
+			return new Node(0, array);
+		}
+
+		// sort the members by their fragment at this level, keeping them in order within a fragment
+		int[] counts = new int[WIDTH + 1];
+		for(int i=from;i<to;i++) counts[((hashes[members[i]] >>> shift) & MASK) + 1]++;
+		int bitmap = 0;
+		int fragments = 0;
+		for(int f=0;f<WIDTH;f++)
+		{
+			if(counts[f + 1]>0)
+			{
+				bitmap |= 1 << f;
+				fragments++;
+			}
+			counts[f + 1] += counts[f];
+		}
+		int[] sorted = new int[to - from];
+		int[] next = counts.clone();
+		for(int i=from;i<to;i++) sorted[next[(hashes[members[i]] >>> shift) & MASK]++] = members[i];
+		System.arraycopy(sorted, 0, members, from, sorted.length);
+
+		Object[] array = new Object[2 * fragments];
+		int i = 0;
+		for(int f=0;f<WIDTH;f++)
+		{
+			int start = from + counts[f];
+			int end = from + counts[f + 1];
+			if(start==end) continue;
+			if(end - start==1)
+			{
+				array[i] = keys[members[start]];
+				array[i + 1] = members[start];
+			}
+			else
+				array[i + 1] = build(keys, hashes, members, start, end, shift + BITS);
+			i += 2;
+		}
+		return new Node(bitmap, array);
+	}
+
+	private static Object[] insert(Object[] array, int i, Object key, Object value)
+	{
+		Object[] copy = new Object[array.length + 2];
+		System.arraycopy(array, 0, copy, 0, i);
+		copy[i] = key;
+		copy[i + 1] = value;
+		System.arraycopy(array, i, copy, i + 2, array.length - i);
+		return copy;
+	}
+
+	private static Object[] delete(Object[] array, int i)
+	{
+		Object[] copy = new Object[array.length - 2];
+		System.arraycopy(array, 0, copy, 0, i);
+		System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+		return copy;
+	}
+}
@@ -0,0 +1,560 @@
+package slite.lib.java;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a KVSCodec for every class marked with KVSObject. The codecs are
+ * plain Java that read and write the fields directly, so no reflection runs
+ * when they are used. The processor is registered in META-INF/services, so it
+ * runs whenever the library is on the class path of javac.
+ * <p>
+ * Fields can hold:
+ * <ul>
+ *	<li>String, and byte[] which is encoded as Base64 like KVS.setBytes(byte[], String...)</li>
+ *	<li>The primitive types and their boxed types. Text that can't be converted
+ *	leaves the field as it was, like the default values of the getters of KVS.</li>
+ *	<li>Enums, which are encoded by name</li>
+ *	<li>Classes marked with KVSObject, which are encoded as sub-structures</li>
+ *	<li>List and arrays of any of the above, which are encoded as sub-structures
+ *	with auto incremented keys. A structure decoded into them can have any keys,
+ *	its values are taken in order. Elements that are null, or can't be converted,
+ *	are left out.</li>
+ * </ul>
+ * A field that is null is left out of the encoded structure.
+ * </p>
+ */
+@SupportedAnnotationTypes({"slite.lib.java.KVSObject", "slite.lib.java.KVSField"})
+public class KVSProcessor extends AbstractProcessor
+{
+	// how a value is encoded
+	private enum Kind
+	{
+		STRING, BYTES, LONG, DOUBLE, BOOLEAN, TEXT, ENUM, OBJECT, LIST, ARRAY
+	}
+
+	private static class Value
+	{
+		Kind kind;
+		String type; // as it's written in the source
+		boolean primitive;
+		String convert; // the KVSCodecs method or generated enum method that converts text
+		String codec; // for OBJECT
+		Value element; // for LIST and ARRAY
+	}
+
+	private static class Property
+	{
+		String key;
+		String name;
+		Value value;
+		String get;
+		String setStart;
+		String setEnd;
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion()
+	{
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round)
+	{
+		for(Element element : round.getElementsAnnotatedWith(KVSObject.class))
+		{
+			if(element.getKind()!=ElementKind.CLASS)
+				this.error("Only a class can be a KVSObject", element);
+			else
+				this.generate((TypeElement) element);
+		}
+		return true;
+	}
+
+	private void generate(TypeElement type)
+	{
+		boolean valid = true;
+		Set<Modifier> modifiers = type.getModifiers();
+		if(modifiers.contains(Modifier.ABSTRACT) || modifiers.contains(Modifier.PRIVATE))
+			valid = this.error("A KVSObject class can be neither abstract nor private", type);
+		if(type.getNestingKind().isNested() && !modifiers.contains(Modifier.STATIC))
+			valid = this.error("A nested KVSObject class must be static", type);
+		if(!type.getTypeParameters().isEmpty())
+			valid = this.error("A KVSObject class can't have type parameters", type);
+
+		boolean constructor = false;
+		for(ExecutableElement method : ElementFilter.constructorsIn(type.getEnclosedElements()))
+			if(method.getParameters().isEmpty() && !method.getModifiers().contains(Modifier.PRIVATE)) constructor = true;
+		if(!constructor)
+			valid = this.error("A KVSObject class needs a constructor without parameters that is not private", type);
+
+		PackageElement pkg = this.processingEnv.getElementUtils().getPackageOf(type);
+		List<ExecutableElement> methods = ElementFilter.methodsIn(this.processingEnv.getElementUtils().getAllMembers(type));
+
+		// the fields of super classes come first
+		List<VariableElement> fields = new ArrayList<>();
+		for(TypeElement current = type; current!=null; current = this.superclass(current))
+			fields.addAll(0, ElementFilter.fieldsIn(current.getEnclosedElements()));
+
+		Map<String, Property> properties = new LinkedHashMap<>();
+		Map<String, Value> enums = new LinkedHashMap<>();
+		for(VariableElement field : fields)
+		{
+			if(field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.TRANSIENT)) continue;
+			Property property = this.property(field, pkg, methods, enums);
+			if(property==null)
+				valid = false;
+			else if(properties.containsKey(property.key))
+				valid = this.error("Another field already has the key " + property.key, field);
+			else
+				properties.put(property.key, property);
+		}
+		if(!valid) return;
+
+		String name = this.codecName(type);
+		String qualifiedName = pkg.isUnnamed() ? name : pkg.getQualifiedName() + "." + name;
+		try(Writer out = this.processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter())
+		{
+			out.write(this.source(type, pkg, name, properties.values(), enums.values()));
+		}
+		catch(IOException e)
+		{
+			this.error("The codec could not be written: " + e.getMessage(), type);
+		}
+	}
+
+	/**
+	 * @return The property of the field, or null after reporting why it can't be one
+	 */
+	private Property property(VariableElement field, PackageElement pkg, List<ExecutableElement> methods, Map<String, Value> enums)
+	{
+		Value value = this.value(field.asType(), field, pkg, enums, false);
+		if(value==null) return null;
+
+		Property property = new Property();
+		KVSField annotation = field.getAnnotation(KVSField.class);
+		property.name = field.getSimpleName().toString();
+		property.key = annotation!=null ? annotation.value() : property.name;
+		property.value = value;
+
+		if(field.getModifiers().contains(Modifier.FINAL))
+		{
+			this.error("A field of a KVSObject can't be final, make it transient to leave it out", field);
+			return null;
+		}
+		if(this.isAccessible(field, pkg))
+		{
+			property.get = "object." + property.name;
+			property.setStart = "object." + property.name + " = ";
+			property.setEnd = ";";
+			return property;
+		}
+
+		String suffix = this.capitalize(property.name);
+		ExecutableElement getter = null;
+		ExecutableElement setter = null;
+		for(ExecutableElement method : methods)
+		{
+			if(!this.isAccessible(method, pkg) || method.getModifiers().contains(Modifier.STATIC)) continue;
+			String methodName = method.getSimpleName().toString();
+			List<? extends VariableElement> parameters = method.getParameters();
+			if(parameters.isEmpty() && this.isSameType(method.getReturnType(), field.asType())
+				&& (methodName.equals("get" + suffix) || (methodName.equals("is" + suffix) && value.kind==Kind.BOOLEAN)))
+				getter = method;
+			else if(parameters.size()==1 && this.isSameType(parameters.get(0).asType(), field.asType()) && methodName.equals("set" + suffix))
+				setter = method;
+		}
+		if(getter==null || setter==null)
+		{
+			this.error("A private field of a KVSObject needs a getter and a setter, make it transient to leave it out", field);
+			return null;
+		}
+		property.get = "object." + getter.getSimpleName() + "()";
+		property.setStart = "object." + setter.getSimpleName() + "(";
+		property.setEnd = ");";
+		return property;
+	}
+
+	/**
+	 * @param element true for the element of a list or array, which can't be a list or array itself
+	 * @return How to encode the type, or null after reporting why it can't be encoded
+	 */
+	private Value value(TypeMirror type, Element field, PackageElement pkg, Map<String, Value> enums, boolean element)
+	{
+		Value value = new Value();
+		value.type = this.typeName(type);
+		value.primitive = type.getKind().isPrimitive();
+		switch(type.getKind())
+		{
+			case BOOLEAN: return this.scalar(value, Kind.BOOLEAN, "toBoolean");
+			case BYTE: return this.scalar(value, Kind.LONG, "toByte");
+			case SHORT: return this.scalar(value, Kind.LONG, "toShort");
+			case INT: return this.scalar(value, Kind.LONG, "toInt");
+			case LONG: return this.scalar(value, Kind.LONG, "toLong");
+			case CHAR: return this.scalar(value, Kind.TEXT, "toChar");
+			case FLOAT: return this.scalar(value, Kind.TEXT, "toFloat");
+			case DOUBLE: return this.scalar(value, Kind.DOUBLE, "toDouble");
+			case ARRAY:
+				TypeMirror component = ((ArrayType) type).getComponentType();
+				if(component.getKind()==TypeKind.BYTE) return this.scalar(value, Kind.BYTES, "toBytes");
+				if(element) break;
+				value.kind = Kind.ARRAY;
+				value.element = this.value(component, field, pkg, enums, true);
+				return value.element==null ? null : value;
+			case DECLARED:
+				TypeElement declared = (TypeElement) ((DeclaredType) type).asElement();
+				switch(declared.getQualifiedName().toString())
+				{
+					case "java.lang.String": return this.scalar(value, Kind.STRING, null);
+					case "java.lang.Boolean": return this.scalar(value, Kind.BOOLEAN, "toBoolean");
+					case "java.lang.Byte": return this.scalar(value, Kind.LONG, "toByte");
+					case "java.lang.Short": return this.scalar(value, Kind.LONG, "toShort");
+					case "java.lang.Integer": return this.scalar(value, Kind.LONG, "toInt");
+					case "java.lang.Long": return this.scalar(value, Kind.LONG, "toLong");
+					case "java.lang.Character": return this.scalar(value, Kind.TEXT, "toChar");
+					case "java.lang.Float": return this.scalar(value, Kind.TEXT, "toFloat");
+					case "java.lang.Double": return this.scalar(value, Kind.DOUBLE, "toDouble");
+					case "java.util.List":
+						List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+						if(element || arguments.size()!=1) break;
+						value.kind = Kind.LIST;
+						value.element = this.value(arguments.get(0), field, pkg, enums, true);
+						if(value.element==null) return null;
+						value.type = "java.util.List<" + value.element.type + ">";
+						return value;
+				}
+				if(!this.isAccessible(declared, pkg))
+				{
+					this.error(declared.getQualifiedName() + " can't be used from the package of the codec", field);
+					return null;
+				}
+				if(declared.getKind()==ElementKind.ENUM)
+				{
+					Value known = enums.get(value.type);
+					if(known!=null) return known;
+					// named after the enum, with a number added if another enum has the same name
+					String convert = "to" + this.flatName(declared);
+					for(int i=2;this.isConvertUsed(enums, convert);i++) convert = "to" + this.flatName(declared) + i;
+					enums.put(value.type, this.scalar(value, Kind.ENUM, convert));
+					return value;
+				}
+				if(declared.getAnnotation(KVSObject.class)!=null)
+				{
+					PackageElement declaredPkg = this.processingEnv.getElementUtils().getPackageOf(declared);
+					value.kind = Kind.OBJECT;
+					value.codec = (declaredPkg.isUnnamed() ? "" : declaredPkg.getQualifiedName() + ".") + this.codecName(declared);
+					return value;
+				}
+				break;
+			default:
+				break;
+		}
+		this.error(value.type + (element ? " can't be an element of a list or array" : " can't be a field of a KVSObject, make the field transient to leave it out"), field);
+		return null;
+	}
+
+	private Value scalar(Value value, Kind kind, String convert)
+	{
+		value.kind = kind;
+		value.convert = convert;
+		return value;
+	}
+
+	private boolean isConvertUsed(Map<String, Value> enums, String convert)
+	{
+		for(Value value : enums.values())
+			if(value.convert.equals(convert)) return true;
+		return false;
+	}
+
+	private String source(TypeElement type, PackageElement pkg, String name, Iterable<Property> properties, Iterable<Value> enums)
+	{
+		String typeName = type.getQualifiedName().toString();
+		StringBuilder out = new StringBuilder();
+		if(!pkg.isUnnamed()) out.append("package ").append(pkg.getQualifiedName()).append(";\n\n");
+		out.append("import java.io.IOException;\n\n");
+		out.append("import slite.lib.java.KVSCodec;\n");
+		out.append("import slite.lib.java.KVSCodecs;\n");
+		out.append("import slite.lib.java.KVSReader;\n");
+		out.append("import slite.lib.java.KVSWriter;\n\n");
+		// no @Generated, no processor claims it so -Xlint:processing would warn in every build using this
+		out.append("/**\n * Generated by KVSProcessor from ").append(typeName).append(", don't edit\n */\n");
+		if(this.isPublic(type)) out.append("public ");
+		out.append("final class ").append(name).append(" implements KVSCodec<").append(typeName).append(">\n{\n");
+		out.append("\tpublic static final ").append(name).append(" INSTANCE = new ").append(name).append("();\n\n");
+		out.append("\tprivate ").append(name).append("()\n\t{\n\n\t}\n\n");
+
+		// decode
+		out.append("\t@Override\n\tpublic ").append(typeName).append(" decode(KVSReader reader) throws IOException\n\t{\n");
+		out.append("\t\t").append(typeName).append(" object = new ").append(typeName).append("();\n");
+		out.append("\t\tKVSReader.Event event;\n");
+		out.append("\t\twhile((event = reader.next())==KVSReader.Event.START_STRUCTURE || event==KVSReader.Event.PRIMITIVE)\n\t\t{\n");
+		out.append("\t\t\tswitch(reader.getKey())\n\t\t\t{\n");
+		for(Property property : properties)
+		{
+			out.append("\t\t\t\tcase ").append(literal(property.key)).append(":\n");
+			Value value = property.value;
+			if(value.kind==Kind.OBJECT || value.kind==Kind.LIST || value.kind==Kind.ARRAY)
+			{
+				String read = value.kind==Kind.OBJECT ? value.codec + ".INSTANCE.decode(reader)" : "read" + this.capitalize(property.name) + "(reader)";
+				out.append("\t\t\t\t\tif(event==KVSReader.Event.START_STRUCTURE) ").append(property.setStart).append(read).append(property.setEnd).append("\n");
+			}
+			else
+			{
+				out.append("\t\t\t\t\tif(event==KVSReader.Event.PRIMITIVE) ").append(property.setStart).append(this.convert(value, property.get)).append(property.setEnd).append("\n");
+				out.append("\t\t\t\t\telse reader.skipValue();\n");
+			}
+			out.append("\t\t\t\t\tbreak;\n");
+		}
+		out.append("\t\t\t\tdefault:\n\t\t\t\t\treader.skipValue();\n");
+		out.append("\t\t\t}\n\t\t}\n\t\treturn object;\n\t}\n\n");
+
+		// encode
+		out.append("\t@Override\n\tpublic void encode(").append(typeName).append(" object, KVSWriter writer) throws IOException\n\t{\n");
+		for(Property property : properties)
+		{
+			Value value = property.value;
+			String key = literal(property.key);
+			if(value.primitive)
+			{
+				this.encode(out, "\t\t", key, value, property.get);
+				continue;
+			}
+			if(value.kind==Kind.LIST || value.kind==Kind.ARRAY)
+			{
+				out.append("\t\tif(").append(property.get).append("!=null)\n\t\t{\n");
+				out.append("\t\t\twriter.startStructure(").append(key).append(");\n");
+				out.append("\t\t\tfor(").append(value.element.type).append(" element : ").append(property.get).append(")\n");
+				if(value.element.primitive)
+					this.encode(out, "\t\t\t\t", "\"\"", value.element, "element");
+				else
+				{
+					out.append("\t\t\t\tif(element!=null)\n");
+					this.encode(out, "\t\t\t\t\t", "\"\"", value.element, "element");
+				}
+				out.append("\t\t\twriter.endStructure();\n\t\t}\n");
+			}
+			else
+			{
+				out.append("\t\tif(").append(property.get).append("!=null)\n");
+				this.encode(out, "\t\t\t", key, value, property.get);
+			}
+		}
+		out.append("\t}\n");
+
+		// the lists and arrays
+		for(Property property : properties)
+		{
+			Value value = property.value;
+			if(value.kind!=Kind.LIST && value.kind!=Kind.ARRAY) continue;
+			Value element = value.element;
+			String boxed = element.primitive ? this.boxedName(element.type) : element.type;
+			out.append("\n\tprivate static ").append(value.type).append(" read").append(this.capitalize(property.name)).append("(KVSReader reader) throws IOException\n\t{\n");
+			out.append("\t\tjava.util.List<").append(boxed).append("> list = new java.util.ArrayList<>();\n");
+			out.append("\t\tKVSReader.Event event;\n");
+			out.append("\t\twhile((event = reader.next())==KVSReader.Event.START_STRUCTURE || event==KVSReader.Event.PRIMITIVE)\n\t\t{\n");
+			if(element.kind==Kind.OBJECT)
+				out.append("\t\t\tif(event==KVSReader.Event.START_STRUCTURE) list.add(").append(element.codec).append(".INSTANCE.decode(reader));\n");
+			else
+			{
+				out.append("\t\t\tif(event==KVSReader.Event.PRIMITIVE)\n\t\t\t{\n");
+				out.append("\t\t\t\t").append(boxed).append(" element = ").append(this.convert(element, "(" + boxed + ") null")).append(";\n");
+				out.append("\t\t\t\tif(element!=null) list.add(element);\n\t\t\t}\n");
+				out.append("\t\t\telse\n\t\t\t\treader.skipValue();\n");
+			}
+			out.append("\t\t}\n");
+			if(value.kind==Kind.LIST)
+				out.append("\t\treturn list;\n");
+			else
+			{
+				// new T[size] with the size in the first brackets, for element types that are arrays themselves
+				int brackets = element.type.indexOf('[');
+				String create = brackets<0 ? element.type + "[list.size()]" : element.type.substring(0, brackets) + "[list.size()]" + element.type.substring(brackets);
+				out.append("\t\t").append(value.type).append(" array = new ").append(create).append(";\n");
+				out.append("\t\tfor(int i=0;i<array.length;i++) array[i] = list.get(i);\n");
+				out.append("\t\treturn array;\n");
+			}
+			out.append("\t}\n");
+		}
+
+		// the enums, without the reflection of valueOf
+		for(Value value : enums)
+		{
+			out.append("\n\tprivate static ").append(value.type).append(" ").append(value.convert).append("(String value, ").append(value.type).append(" defaultValue)\n\t{\n");
+			out.append("\t\tswitch(value.trim())\n\t\t{\n");
+			TypeElement declared = this.processingEnv.getElementUtils().getTypeElement(value.type);
+			for(Element constant : declared.getEnclosedElements())
+			{
+				if(constant.getKind()!=ElementKind.ENUM_CONSTANT) continue;
+				out.append("\t\t\tcase \"").append(constant.getSimpleName()).append("\": return ").append(value.type).append(".").append(constant.getSimpleName()).append(";\n");
+			}
+			out.append("\t\t\tdefault: return defaultValue;\n\t\t}\n\t}\n");
+		}
+
+		out.append("}\n");
+		return out.toString();
+	}
+
+	/**
+	 * @return The expression that converts the text value of the reader
+	 */
+	private String convert(Value value, String defaultValue)
+	{
+		switch(value.kind)
+		{
+			case STRING: return "reader.getValue()";
+			case ENUM: return value.convert + "(reader.getValue(), " + defaultValue + ")";
+			default: return "KVSCodecs." + value.convert + "(reader.getValue(), " + defaultValue + ")";
+		}
+	}
+
+	/**
+	 * Appends the statement that writes a value that is not null. The indent is
+	 * that of a statement under an if or for, a block goes one tab back out.
+	 */
+	private void encode(StringBuilder out, String indent, String key, Value value, String get)
+	{
+		switch(value.kind)
+		{
+			case OBJECT:
+				String outer = indent.substring(1);
+				out.append(outer).append("{\n");
+				out.append(indent).append("writer.startStructure(").append(key).append(");\n");
+				out.append(indent).append(value.codec).append(".INSTANCE.encode(").append(get).append(", writer);\n");
+				out.append(indent).append("writer.endStructure();\n");
+				out.append(outer).append("}\n");
+				return;
+			case LONG: get = value.primitive ? get : get + ".longValue()"; break;
+			case DOUBLE: get = value.primitive ? get : get + ".doubleValue()"; break;
+			case BOOLEAN: get = value.primitive ? get : get + ".booleanValue()"; break;
+			case TEXT: get = "String.valueOf(" + get + ")"; break; // a float as a double would gain digits
+			case ENUM: get = get + ".name()"; break;
+			default: break;
+		}
+		out.append(indent).append("writer.value(").append(key).append(", ").append(get).append(");\n");
+	}
+
+	/**
+	 * @return The source of a Java string literal holding the text
+	 */
+	private static String literal(String text)
+	{
+		StringBuilder out = new StringBuilder("\"");
+		for(int i=0;i<text.length();i++)
+		{
+			char c = text.charAt(i);
+			if(c=='"' || c=='\\')
+				out.append('\\').append(c);
+			else if(c<0x20 || c>0x7E)
+				out.append(String.format("\\u%04x", (int) c));
+			else
+				out.append(c);
+		}
+		return out.append('"').toString();
+	}
+
+	private String typeName(TypeMirror type)
+	{
+		if(type.getKind()==TypeKind.ARRAY) return this.typeName(((ArrayType) type).getComponentType()) + "[]";
+		if(type.getKind()==TypeKind.DECLARED) return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+		return type.toString();
+	}
+
+	private String boxedName(String primitive)
+	{
+		switch(primitive)
+		{
+			case "int": return "java.lang.Integer";
+			case "char": return "java.lang.Character";
+			default: return "java.lang." + this.capitalize(primitive);
+		}
+	}
+
+	/**
+	 * @return The name of the class with the names of the classes it's nested in, joined by _
+	 */
+	private String flatName(TypeElement type)
+	{
+		String name = type.getSimpleName().toString();
+		for(Element outer = type.getEnclosingElement(); outer instanceof TypeElement; outer = outer.getEnclosingElement())
+			name = outer.getSimpleName() + "_" + name;
+		return name;
+	}
+
+	private String codecName(TypeElement type)
+	{
+		return this.flatName(type) + "KVSCodec";
+	}
+
+	private TypeElement superclass(TypeElement type)
+	{
+		TypeMirror superclass = type.getSuperclass();
+		if(superclass.getKind()!=TypeKind.DECLARED) return null;
+		TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+		return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+	}
+
+	private boolean isSameType(TypeMirror a, TypeMirror b)
+	{
+		return this.processingEnv.getTypeUtils().isSameType(a, b);
+	}
+
+	/**
+	 * @return true if the codec, which is a class in the package given, can use the element
+	 */
+	private boolean isAccessible(Element element, PackageElement pkg)
+	{
+		boolean samePackage = this.processingEnv.getElementUtils().getPackageOf(element).equals(pkg);
+		for(Element current = element; current instanceof TypeElement || current==element; current = current.getEnclosingElement())
+		{
+			Set<Modifier> modifiers = current.getModifiers();
+			if(modifiers.contains(Modifier.PRIVATE) || (!samePackage && !modifiers.contains(Modifier.PUBLIC))) return false;
+		}
+		return true;
+	}
+
+	private boolean isPublic(TypeElement type)
+	{
+		for(Element current = type; current instanceof TypeElement; current = current.getEnclosingElement())
+			if(!current.getModifiers().contains(Modifier.PUBLIC)) return false;
+		return true;
+	}
+
+	private String capitalize(String text)
+	{
+		return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+	}
+
+	/**
+	 * @return false, so that it can be assigned to a flag that says whether everything is valid
+	 */
+	private boolean error(String message, Element element)
+	{
+		this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+		return false;
+	}
+}
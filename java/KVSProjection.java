@@ -0,0 +1,320 @@
+package slite.lib.java;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts the primitive values at a set of key paths from KVS in a single
+ * pass, without building KVS structures for anything else. A key of * in a
+ * pattern matches any key, including auto incremented keys, so the patterns
+ * "car/*&#47;make" and "pets/*&#47;name" pick the make of every car and the name of
+ * every pet:
+ * <pre>
+ * KVSProjection projection = new KVSProjection("car/*&#47;make", "pets/*&#47;name");
+ * projection.forEach(stream, (path, value) -&gt; System.out.println(path + " = " + value));
+ * KVS fields = projection.project(stream);
+ * </pre>
+ * Sub-structures that no pattern can match are skipped over without decoding
+ * anything, and so are primitive values that no pattern matches. The patterns
+ * are compiled once, so a projection can be reused and shared between threads.
+ * <p>
+ * Patterns only match primitive values, a pattern ending at a structure matches
+ * nothing in it. Null keys are numbered per structure exactly like they are
+ * when decoding into a KVS.
+ * </p>
+ */
+public final class KVSProjection
+{
+	public static final String WILDCARD = "*";
+
+	/**
+	 * Receives the values that match
+	 */
+	public interface Handler
+	{
+		/**
+		 * @param path The full key path of the value
+		 * @param value
+		 */
+		void value(KVSPath path, String value);
+	}
+
+	/**
+	 * A node of the tree of patterns
+	 */
+	private static final class Node
+	{
+		final Map<String, Node> children = new LinkedHashMap<>();
+		Node wildcard;
+		boolean end; // a pattern ends here
+	}
+
+	/**
+	 * A set of pattern nodes that a key path can be at, with the transitions for
+	 * the next key worked out in advance, so that walking takes one lookup a key.
+	 */
+	private static final class State
+	{
+		final Map<String, State> next = new HashMap<>();
+		State other; // for keys that are not in next, null if none can match
+		boolean match;
+
+		boolean isLeaf()
+		{
+			return this.next.isEmpty() && this.other==null;
+		}
+	}
+
+	private final State root;
+
+	/**
+	 * @param patterns Paths of keys separated by a /, see KVSPath.parse(), where * matches any key
+	 */
+	public KVSProjection(String... patterns)
+	{
+		KVSPath[] paths = new KVSPath[patterns.length];
+		for(int i=0;i<patterns.length;i++) paths[i] = KVSPath.parse(patterns[i]);
+		this.root = compile(paths);
+	}
+
+	/**
+	 * @param patterns Key paths where a key of * matches any key
+	 */
+	public KVSProjection(KVSPath... patterns)
+	{
+		this.root = compile(patterns);
+	}
+
+	/**
+	 * Read the stream to the end, passing every value that matches to the handler
+	 * @param stream
+	 * @param handler
+	 * @throws IOException If the underlying stream fails
+	 */
+	public void forEach(InputStream stream, Handler handler) throws IOException
+	{
+		this.walk(new KVSDecoder(stream), handler);
+	}
+
+	/**
+	 * Pass every value of the text that matches to the handler
+	 * @param text
+	 * @param handler
+	 */
+	public void forEach(String text, Handler handler)
+	{
+		try
+		{
+			this.walk(new KVSDecoder(text.getBytes(StandardCharsets.UTF_8)), handler);
+		}
+		catch(IOException e)
+		{
+			// there is no stream to fail
+		}
+	}
+
+	/**
+	 * Read the file to the end through a memory mapping, passing every value that
+	 * matches to the handler
+	 * @param file
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void forEach(File file, Handler handler) throws IOException
+	{
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			this.walk(new KVSMappedDecoder(channel), handler);
+		}
+	}
+
+	/**
+	 * @param stream Read to the end
+	 * @return A structure holding only the values that match, at their key paths
+	 * @throws IOException If the underlying stream fails
+	 */
+	public KVS project(InputStream stream) throws IOException
+	{
+		KVS kvs = new KVS();
+		this.forEach(stream, (path, value) -> kvs.set(value, path));
+		return kvs;
+	}
+
+	/**
+	 * @param text
+	 * @return A structure holding only the values that match, at their key paths
+	 */
+	public KVS project(String text)
+	{
+		KVS kvs = new KVS();
+		this.forEach(text, (path, value) -> kvs.set(value, path));
+		return kvs;
+	}
+
+	/**
+	 * @param file
+	 * @return A structure holding only the values that match, at their key paths
+	 * @throws IOException
+	 */
+	public KVS project(File file) throws IOException
+	{
+		KVS kvs = new KVS();
+		this.forEach(file, (path, value) -> kvs.set(value, path));
+		return kvs;
+	}
+
+	private void walk(KVSDecoder buffer, Handler handler) throws IOException
+	{
+		buffer.keys = new KVSKeyTable(); // the same keys repeat in every record
+		State[] states = new State[16];
+		String[] keys = new String[16];
+		int[] autoIds = new int[16];
+		int depth = 0;
+		states[0] = this.root;
+		if(this.root.isLeaf()) return;
+
+		try
+		{
+			while(true)
+			{
+				String key = buffer.readKey();
+				if(key==null)
+				{
+					if(depth==0) return; // a stray ] ends the input, like it does when decoding
+					depth--;
+					continue;
+				}
+
+				State state = states[depth];
+				State next;
+				int autoId = -1;
+				if(key.isEmpty())
+				{
+					autoId = autoIds[depth]++;
+					if(state.next.isEmpty()) // only a wildcard can match, so the key isn't needed yet
+					{
+						key = null;
+						next = state.other;
+					}
+					else
+					{
+						key = Integer.toString(autoId);
+						next = state.next.getOrDefault(key, state.other);
+					}
+				}
+				else
+					next = state.next.getOrDefault(key, state.other);
+
+				if(buffer.prev()=='=')
+				{
+					if(next==null || !next.match)
+						buffer.skipPrimitive();
+					else
+					{
+						String value = buffer.readPrimitive();
+						String[] path = new String[depth + 1];
+						System.arraycopy(keys, 0, path, 0, depth);
+						path[depth] = key!=null ? key : Integer.toString(autoId);
+						handler.value(new KVSPath(path), value);
+					}
+				}
+				else if(next==null || next.isLeaf())
+				{
+					if(!buffer.skipStructure()) return;
+				}
+				else
+				{
+					keys[depth] = key!=null ? key : Integer.toString(autoId);
+					depth++;
+					if(depth==states.length)
+					{
+						states = Arrays.copyOf(states, depth * 2);
+						keys = Arrays.copyOf(keys, depth * 2);
+						autoIds = Arrays.copyOf(autoIds, depth * 2);
+					}
+					states[depth] = next;
+					autoIds[depth] = 0;
+				}
+			}
+		}
+		catch(EOFException e)
+		{
+			// at the end of the input
+		}
+	}
+
+	private static State compile(KVSPath[] patterns)
+	{
+		Node root = new Node();
+		for(KVSPath pattern : patterns)
+		{
+			if(pattern.size()==0) continue; // the root is never a primitive
+			Node node = root;
+			for(String key : pattern.keys)
+			{
+				if(key.equals(WILDCARD))
+				{
+					if(node.wildcard==null) node.wildcard = new Node();
+					node = node.wildcard;
+				}
+				else
+					node = node.children.computeIfAbsent(key, k -> new Node());
+			}
+			node.end = true;
+		}
+
+		Set<Node> start = new HashSet<>();
+		start.add(root);
+		return state(start, new HashMap<>());
+	}
+
+	/**
+	 * @param nodes The pattern nodes a key path can be at
+	 * @param states The states already built, by their nodes
+	 * @return The state for the nodes, or null if there are none
+	 */
+	private static State state(Set<Node> nodes, Map<Set<Node>, State> states)
+	{
+		if(nodes.isEmpty()) return null;
+		State state = states.get(nodes);
+		if(state!=null) return state;
+
+		state = new State();
+		states.put(nodes, state);
+
+		Set<Node> other = new HashSet<>();
+		for(Node node : nodes)
+		{
+			if(node.end) state.match = true;
+			if(node.wildcard!=null) other.add(node.wildcard);
+		}
+		for(Node node : nodes)
+		{
+			for(String key : node.children.keySet())
+			{
+				if(state.next.containsKey(key)) continue;
+				// a key named in a pattern can also be matched by the wildcards
+				Set<Node> next = new HashSet<>(other);
+				for(Node candidate : nodes)
+				{
+					Node child = candidate.children.get(key);
+					if(child!=null) next.add(child);
+				}
+				state.next.put(key, state(next, states));
+			}
+		}
+		state.other = state(other, states);
+		return state;
+	}
+}
@@ -0,0 +1,214 @@
+package slite.lib.java;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A pull reader for KVS. Instead of building a KVS structure it returns one event
+ * at a time, so chained KVS structures of any size can be processed in constant memory.
+ * <p>
+ * A typical loop looks like:
+ * <pre>
+ * KVSReader reader = new KVSReader(stream);
+ * KVSReader.Event event;
+ * while((event = reader.next()) != KVSReader.Event.END_OF_INPUT)
+ * {
+ *		if(event == KVSReader.Event.START_STRUCTURE &amp;&amp; !reader.getKey().equals("car"))
+ *			reader.skipValue();
+ *		else if(event == KVSReader.Event.PRIMITIVE)
+ *			System.out.println(reader.getKey() + " = " + reader.getValue());
+ * }
+ * </pre>
+ * </p>
+ * Null keys are numbered per structure exactly like they are when decoding into a KVS.
+ */
+public class KVSReader
+{
+	public enum Event
+	{
+		/** A key followed by a structure. getKey() returns the key */
+		START_STRUCTURE,
+		/** A key followed by a primitive value. getKey() and getValue() returns them */
+		PRIMITIVE,
+		/** The end of the structure last started */
+		END_STRUCTURE,
+		/** There is nothing more to read. If the input was cut short then getDepth() will be more than 0 */
+		END_OF_INPUT
+	}
+
+	private final KVSDecoder buffer;
+	private Event event = null;
+	private String key = null;
+	private String value = null;
+	private int bytes = -1; // put into the target given to next(String, ByteBuffer)
+	private int depth = 0;
+	private int[] autoIds = new int[16]; // the next null key of every open structure
+
+	/**
+	 * Read KVS from a stream. The stream is read in chunks, so any data after the
+	 * last event read might already have been consumed from the stream.
+	 * @param stream
+	 */
+	public KVSReader(InputStream stream)
+	{
+		this.buffer = new KVSDecoder(stream);
+	}
+
+	/**
+	 * Read KVS from a stream, looking keys up in the given table so that
+	 * repeated keys are only decoded once, see KVSKeyTable.
+	 * @param stream
+	 * @param keys
+	 */
+	public KVSReader(InputStream stream, KVSKeyTable keys)
+	{
+		this.buffer = new KVSDecoder(stream);
+		this.buffer.keys = keys;
+	}
+
+	/**
+	 * Read KVS from a string
+	 * @param text
+	 */
+	public KVSReader(String text)
+	{
+		this.buffer = new KVSDecoder(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	KVSReader(KVSDecoder buffer)
+	{
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Reads the next event. Once END_OF_INPUT is returned it will keep being returned.
+	 * @return The event read
+	 * @throws IOException If the underlying stream fails
+	 */
+	public Event next() throws IOException
+	{
+		return this.next(null, null);
+	}
+
+	/**
+	 * Reads the next event like next(), except that a primitive value under the
+	 * binary key is decoded as Base64 straight out of the input into the target,
+	 * without building a String for it. getValue() is null for that PRIMITIVE
+	 * event and getBytes() returns the number of bytes put.
+	 * @param binaryKey The key of the values to decode, at any depth
+	 * @param target The bytes are put at its position, which is moved past them
+	 * @return The event read
+	 * @throws IOException If the underlying stream fails
+	 * @throws BufferOverflowException If the bytes don't fit into the target. The
+	 * value has been read then, so reading can carry on with the next event.
+	 */
+	public Event next(String binaryKey, ByteBuffer target) throws IOException
+	{
+		this.key = null;
+		this.value = null;
+		this.bytes = -1;
+		if(this.event==Event.END_OF_INPUT) return this.event;
+
+		try
+		{
+			String key = this.buffer.readKey();
+			if(key==null)
+			{
+				if(this.depth==0) return this.event = Event.END_OF_INPUT; // a stray ] ends the input, like it does when decoding
+				this.depth--;
+				return this.event = Event.END_STRUCTURE;
+			}
+
+			if(key.isEmpty()) key = Integer.toString(this.autoIds[this.depth]++);
+			this.key = key;
+
+			if(this.buffer.prev()=='=')
+			{
+				if(key.equals(binaryKey))
+				{
+					this.event = Event.PRIMITIVE; // already, in case the bytes don't fit
+					this.bytes = this.buffer.readBinary(target);
+				}
+				else
+					this.value = this.buffer.readPrimitive();
+				return this.event = Event.PRIMITIVE;
+			}
+
+			this.depth++;
+			if(this.depth==this.autoIds.length)
+			{
+				int[] grown = new int[this.autoIds.length * 2];
+				System.arraycopy(this.autoIds, 0, grown, 0, this.autoIds.length);
+				this.autoIds = grown;
+			}
+			this.autoIds[this.depth] = 0;
+			return this.event = Event.START_STRUCTURE;
+		}
+		catch(EOFException e)
+		{
+			this.key = null;
+			return this.event = Event.END_OF_INPUT;
+		}
+	}
+
+	/**
+	 * If the last event was START_STRUCTURE then the whole structure is skipped
+	 * without decoding anything, and the next event will be whatever follows the
+	 * structure. For any other event nothing is done.
+	 * @throws IOException If the underlying stream fails
+	 */
+	public void skipValue() throws IOException
+	{
+		if(this.event!=Event.START_STRUCTURE) return;
+
+		this.buffer.skipStructure();
+		this.depth--;
+		this.event = Event.END_STRUCTURE;
+	}
+
+	/**
+	 * @return The last event read, or null if next() has not been called yet
+	 */
+	public Event getEvent()
+	{
+		return this.event;
+	}
+
+	/**
+	 * @return The key of the last START_STRUCTURE or PRIMITIVE event, otherwise null
+	 */
+	public String getKey()
+	{
+		return this.key;
+	}
+
+	/**
+	 * @return The value of the last PRIMITIVE event, otherwise null
+	 */
+	public String getValue()
+	{
+		return this.value;
+	}
+
+	/**
+	 * @return The number of bytes the last PRIMITIVE event put into the target
+	 * given to next(String, ByteBuffer), or -1 if its value was not Base64 or was
+	 * read as text
+	 */
+	public int getBytes()
+	{
+		return this.bytes;
+	}
+
+	/**
+	 * @return The number of structures currently open. After a START_STRUCTURE
+	 * event this includes the structure just started.
+	 */
+	public int getDepth()
+	{
+		return this.depth;
+	}
+}
@@ -0,0 +1,203 @@
+package slite.lib.java;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads KVS structures written by a KVSWireWriter, see KVSWireWriter for the
+ * format. Keys that were already read on the stream are taken from its key
+ * dictionary, so they are only decoded once.
+ * <p>
+ * The stream is read in chunks, so any data after the last structure read
+ * might already have been consumed from the stream.
+ * </p>
+ */
+public class KVSWireReader
+{
+	private final InputStream in;
+	private final byte[] buf = new byte[KVSEncoder.BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	private boolean started = false;
+	private final List<String> keys = new ArrayList<>();
+
+	public KVSWireReader(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Read the next structure from the stream
+	 * @return The structure, or null if the stream ended before it started
+	 * @throws IOException EOFException if the stream ended in the middle of the
+	 * structure, or an IOException if the stream is not in the wire format
+	 */
+	public KVS read() throws IOException
+	{
+		KVS kvs = new KVS();
+		return this.read(kvs) ? kvs : null;
+	}
+
+	/**
+	 * Read the next structure from the stream into the target. All existing data
+	 * in the target with the same keys is overwritten.
+	 * @param target
+	 * @return false if the stream ended before the structure started
+	 * @throws IOException See read()
+	 */
+	public boolean read(KVS target) throws IOException
+	{
+		if(!this.started)
+		{
+			if(!this.fill(1)) return false;
+			if(this.readByte()!='K' || this.readByte()!='W' || this.readByte()!=KVSWireWriter.VERSION)
+				throw new IOException("Not a KVS wire stream");
+			this.started = true;
+		}
+		if(!this.fill(1)) return false;
+		target.fromWire(this);
+		return true;
+	}
+
+	/**
+	 * @return The first byte of the next pair, which holds its key kind and value type,
+	 * or KVSWireWriter.END at the end of the structure
+	 */
+	int readHeader() throws IOException
+	{
+		return this.readByte();
+	}
+
+	/**
+	 * @param header
+	 * @return The key of the pair, or null for an auto key
+	 */
+	String readKey(int header) throws IOException
+	{
+		switch(header >>> 4)
+		{
+			case KVSWireWriter.AUTO_KEY:
+				return null;
+			case KVSWireWriter.NEW_KEY:
+				String key = this.readString();
+				if(this.keys.size()<KVSWireWriter.MAX_KEYS) this.keys.add(key);
+				return key;
+			case KVSWireWriter.KNOWN_KEY:
+				long id = this.readVarint();
+				if(id<0 || id>=this.keys.size()) throw new IOException("Unknown key " + id);
+				return this.keys.get((int) id);
+			case KVSWireWriter.LITERAL_KEY:
+				return this.readString();
+			default:
+				throw new IOException("Unknown key kind " + (header >>> 4));
+		}
+	}
+
+	/**
+	 * @param header
+	 * @return The value of the pair, with a structure read in full
+	 */
+	Object readValue(int header) throws IOException
+	{
+		long number;
+		switch(header & 0x0F)
+		{
+			case KVSWireWriter.STRUCTURE:
+				KVS kvs = new KVS();
+				kvs.fromWire(this);
+				return kvs;
+			case KVSWireWriter.STRING:
+				return this.readString();
+			case KVSWireWriter.INTEGER_STRING:
+				number = this.readVarint();
+				return Long.toString((number >>> 1) ^ -(number & 1));
+			case KVSWireWriter.LONG:
+				number = this.readVarint();
+				return new KVSNumber((number >>> 1) ^ -(number & 1));
+			case KVSWireWriter.DOUBLE:
+				number = 0;
+				for(int i=0;i<8;i++) number = number << 8 | this.readByte();
+				return new KVSNumber(Double.longBitsToDouble(number));
+			case KVSWireWriter.BYTES:
+				return new KVSBinary(this.readBytes(this.readLength()));
+			default:
+				throw new IOException("Unknown value type " + (header & 0x0F));
+		}
+	}
+
+	private String readString() throws IOException
+	{
+		int length = this.readLength();
+		if(length<=this.buf.length)
+		{
+			if(!this.fill(length)) throw new EOFException();
+			String text = new String(this.buf, this.pos, length, StandardCharsets.UTF_8);
+			this.pos += length;
+			return text;
+		}
+		return new String(this.readBytes(length), StandardCharsets.UTF_8);
+	}
+
+	private byte[] readBytes(int length) throws IOException
+	{
+		byte[] bytes = new byte[length];
+		int read = Math.min(length, this.limit - this.pos);
+		System.arraycopy(this.buf, this.pos, bytes, 0, read);
+		this.pos += read;
+		while(read<length) // the rest straight from the stream
+		{
+			int count = this.in.read(bytes, read, length - read);
+			if(count<0) throw new EOFException();
+			read += count;
+		}
+		return bytes;
+	}
+
+	private int readLength() throws IOException
+	{
+		long length = this.readVarint();
+		if(length<0 || length>Integer.MAX_VALUE - 8) throw new IOException("Corrupt length " + length);
+		return (int) length;
+	}
+
+	private long readVarint() throws IOException
+	{
+		long value = 0;
+		for(int shift=0;shift<64;shift+=7)
+		{
+			int b = this.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80)==0) return value;
+		}
+		throw new IOException("Corrupt varint");
+	}
+
+	private int readByte() throws IOException
+	{
+		if(this.pos==this.limit && !this.fill(1)) throw new EOFException();
+		return this.buf[this.pos++] & 0xFF;
+	}
+
+	/**
+	 * Makes sure that at least count bytes are buffered, count must fit into the buffer
+	 * @return false if the stream ended first
+	 */
+	private boolean fill(int count) throws IOException
+	{
+		if(this.limit - this.pos>=count) return true;
+		System.arraycopy(this.buf, this.pos, this.buf, 0, this.limit - this.pos);
+		this.limit -= this.pos;
+		this.pos = 0;
+		while(this.limit<count)
+		{
+			int read = this.in.read(this.buf, this.limit, this.buf.length - this.limit);
+			if(read<0) return false;
+			this.limit += read;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,332 @@
+package slite.lib.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Writes KVS structures in the compact binary wire format, for traffic between
+ * services where nobody reads the text. Nothing has to be escaped, numbers are
+ * written as numbers and binary values as raw bytes, and a key that was already
+ * written on the stream costs a small number instead of its text.
+ * <p>
+ * The format holds exactly the same data as KVS text. Decoding either one into
+ * a KVS and encoding it as the other gives exactly the same result as going
+ * straight from one to the other would, so a service can convert at its edge:
+ * <pre>
+ * new KVSWireWriter(wire).write(new KVS(textStream, -1));
+ * new KVSWireReader(wire).read().toStream(textStream);
+ * </pre>
+ * </p>
+ * <p>
+ * A stream starts with the 3 bytes 'K' 'W' and the version, followed by any
+ * number of structures. A structure is a list of pairs ending with a 0 byte.
+ * Every pair starts with a byte holding the key kind in its high 4 bits and the
+ * value type in its low 4 bits. The key follows:
+ * <ul>
+ *	<li>AUTO_KEY: nothing, the key is the structure's next auto incremented key</li>
+ *	<li>NEW_KEY: the key as a varint byte count and UTF-8, which is then given
+ *	the next number in the stream's key dictionary</li>
+ *	<li>KNOWN_KEY: the key's number in the dictionary as a varint</li>
+ *	<li>LITERAL_KEY: like NEW_KEY, but the key is not added to the dictionary
+ *	because it is full</li>
+ * </ul>
+ * Then the value:
+ * <ul>
+ *	<li>STRUCTURE: the pairs of the structure and its 0 byte</li>
+ *	<li>STRING: a varint byte count and UTF-8</li>
+ *	<li>INTEGER_STRING: a text value that is the plain decimal text of a long,
+ *	as a zigzag varint. It's read back as the same text.</li>
+ *	<li>LONG: a number set with setLong, as a zigzag varint</li>
+ *	<li>DOUBLE: a number set with setDouble, as its 8 IEEE 754 bytes, big endian</li>
+ *	<li>BYTES: a binary value as a varint byte count and the bytes</li>
+ * </ul>
+ * Varints are unsigned LEB128, 7 bits a byte with the low bits first.
+ * </p>
+ * The dictionary belongs to the stream, so the same writer should be used for
+ * every structure written to it, and a single KVSWireReader to read them back.
+ */
+public class KVSWireWriter
+{
+	static final int VERSION = 1;
+
+	// value types, in the low 4 bits of a pair's first byte
+	static final int END = 0;
+	static final int STRUCTURE = 1;
+	static final int STRING = 2;
+	static final int INTEGER_STRING = 3;
+	static final int LONG = 4;
+	static final int DOUBLE = 5;
+	static final int BYTES = 6;
+
+	// key kinds, in the high 4 bits of a pair's first byte
+	static final int AUTO_KEY = 0;
+	static final int NEW_KEY = 1;
+	static final int KNOWN_KEY = 2;
+	static final int LITERAL_KEY = 3;
+
+	// The most keys the dictionary holds, so that a stream of ever new keys doesn't use ever more memory
+	static final int MAX_KEYS = 1 << 16;
+
+	private final OutputStream out;
+	private final byte[] buf = new byte[KVSEncoder.BUFFER_SIZE];
+	private int pos = 0;
+	private boolean started = false;
+	private final Map<String, Integer> keys = new HashMap<>();
+
+	public KVSWireWriter(OutputStream out)
+	{
+		this.out = out;
+	}
+
+	/**
+	 * Write the structure to the stream. The bytes are buffered, call flush()
+	 * to send them.
+	 * @param kvs
+	 * @throws IOException
+	 */
+	public void write(KVS kvs) throws IOException
+	{
+		if(!this.started)
+		{
+			this.writeByte('K');
+			this.writeByte('W');
+			this.writeByte(VERSION);
+			this.started = true;
+		}
+		this.writeStructure(kvs);
+	}
+
+	/**
+	 * Writes whatever is buffered and flushes the stream
+	 * @throws IOException
+	 */
+	public void flush() throws IOException
+	{
+		this.flushBuffer();
+		this.out.flush();
+	}
+
+	private void writeStructure(KVS kvs) throws IOException
+	{
+		KVSArrayMap array = kvs.array();
+		if(array!=null) // every key is an auto key
+		{
+			int size = array.size();
+			for(int i=0;i<size;i++) this.writePair(null, array.element(i));
+		}
+		else
+		{
+			int autoId = 0;
+			for(Entry<String, Object> entry : kvs.map().entrySet())
+			{
+				String key = entry.getKey();
+				if(KVSEncoder.isAutoKey(key, autoId)) // the same auto keys as the text encoder
+				{
+					key = null;
+					autoId++;
+				}
+				this.writePair(key, entry.getValue());
+			}
+		}
+		this.writeByte(END);
+	}
+
+	/**
+	 * @param key null for an auto key
+	 * @param value
+	 */
+	private void writePair(String key, Object value) throws IOException
+	{
+		int type;
+		long number = 0;
+		String text = null;
+		if(value!=null && value.getClass().equals(KVS.class))
+			type = STRUCTURE;
+		else if(value instanceof Integer || value instanceof Long || (value instanceof KVSNumber && !((KVSNumber) value).isDecimal()))
+		{
+			type = LONG;
+			number = ((Number) value).longValue();
+		}
+		else if(value instanceof Double || value instanceof KVSNumber) // encoded as text exactly like Double.toString
+		{
+			type = DOUBLE;
+			number = Double.doubleToRawLongBits(((Number) value).doubleValue());
+		}
+		else if(value instanceof KVSBinary)
+			type = BYTES;
+		else
+		{
+			text = value instanceof String ? (String) value : String.valueOf(value);
+			type = STRING;
+			if(isIntegerString(text))
+			{
+				type = INTEGER_STRING;
+				number = Long.parseLong(text);
+			}
+		}
+
+		if(key==null)
+			this.writeByte(AUTO_KEY << 4 | type);
+		else
+		{
+			Integer known = this.keys.get(key);
+			if(known!=null)
+			{
+				this.writeByte(KNOWN_KEY << 4 | type);
+				this.writeVarint(known);
+			}
+			else if(this.keys.size()<MAX_KEYS)
+			{
+				this.keys.put(key, this.keys.size());
+				this.writeByte(NEW_KEY << 4 | type);
+				this.writeString(key);
+			}
+			else
+			{
+				this.writeByte(LITERAL_KEY << 4 | type);
+				this.writeString(key);
+			}
+		}
+
+		switch(type)
+		{
+			case STRUCTURE:
+				this.writeStructure((KVS) value);
+				break;
+			case STRING:
+				this.writeString(text);
+				break;
+			case INTEGER_STRING:
+			case LONG:
+				this.writeVarint((number << 1) ^ (number >> 63)); // zigzag, so that small negative numbers are short too
+				break;
+			case DOUBLE:
+				for(int shift=56;shift>=0;shift-=8) this.writeByte((int) (number >>> shift));
+				break;
+			case BYTES:
+				byte[] bytes = ((KVSBinary) value).bytes();
+				this.writeVarint(bytes.length);
+				this.writeBytes(bytes);
+				break;
+		}
+	}
+
+	/**
+	 * Returns true if the text is exactly what Long.toString gives for some long,
+	 * so that it can be written as a number and read back as the same text
+	 */
+	static boolean isIntegerString(String text)
+	{
+		int length = text.length();
+		int start = length>0 && text.charAt(0)=='-' ? 1 : 0;
+		int digits = length - start;
+		if(digits==0 || digits>19) return false;
+		if(text.charAt(start)=='0' && (digits>1 || start==1)) return false; // leading zeros and -0
+
+		long value = 0;
+		for(int i=start;i<length;i++)
+		{
+			char c = text.charAt(i);
+			if(c<'0' || c>'9') return false;
+			if(value > (Long.MAX_VALUE - (c - '0')) / 10) // doesn't fit, unless it's exactly Long.MIN_VALUE
+				return start==1 && text.equals("-9223372036854775808");
+			value = value * 10 + (c - '0');
+		}
+		return true;
+	}
+
+	private void writeVarint(long value) throws IOException
+	{
+		if(this.pos + 10 > this.buf.length) this.flushBuffer();
+		while((value & ~0x7FL)!=0)
+		{
+			this.buf[this.pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		this.buf[this.pos++] = (byte) value;
+	}
+
+	/**
+	 * Writes the UTF-8 byte count of the text and then the bytes, without building
+	 * them first. Unpaired surrogates are written as ? like String.getBytes(UTF_8) does.
+	 */
+	private void writeString(String text) throws IOException
+	{
+		int length = text.length();
+		long bytes = 0;
+		for(int i=0;i<length;i++)
+		{
+			char c = text.charAt(i);
+			if(c<0x80) bytes++;
+			else if(c<0x800) bytes += 2;
+			else if(Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(text.charAt(i+1)))
+			{
+				bytes += 4;
+				i++;
+			}
+			else if(Character.isSurrogate(c)) bytes++;
+			else bytes += 3;
+		}
+		this.writeVarint(bytes);
+
+		for(int i=0;i<length;i++)
+		{
+			if(this.pos + 4 > this.buf.length) this.flushBuffer();
+
+			char c = text.charAt(i);
+			if(c<0x80)
+				this.buf[this.pos++] = (byte) c;
+			else if(c<0x800)
+			{
+				this.buf[this.pos++] = (byte) (0xC0 | (c >> 6));
+				this.buf[this.pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if(Character.isSurrogate(c))
+			{
+				if(Character.isHighSurrogate(c) && i+1<length && Character.isLowSurrogate(text.charAt(i+1)))
+				{
+					int cp = Character.toCodePoint(c, text.charAt(++i));
+					this.buf[this.pos++] = (byte) (0xF0 | (cp >> 18));
+					this.buf[this.pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					this.buf[this.pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					this.buf[this.pos++] = (byte) (0x80 | (cp & 0x3F));
+				}
+				else
+					this.buf[this.pos++] = '?';
+			}
+			else
+			{
+				this.buf[this.pos++] = (byte) (0xE0 | (c >> 12));
+				this.buf[this.pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				this.buf[this.pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private void writeBytes(byte[] bytes) throws IOException
+	{
+		if(bytes.length > this.buf.length - this.pos)
+		{
+			this.flushBuffer();
+			this.out.write(bytes); // too big for the buffer, so it goes straight out
+			return;
+		}
+		System.arraycopy(bytes, 0, this.buf, this.pos, bytes.length);
+		this.pos += bytes.length;
+	}
+
+	private void writeByte(int b) throws IOException
+	{
+		if(this.pos==this.buf.length) this.flushBuffer();
+		this.buf[this.pos++] = (byte) b;
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		if(this.pos>0) this.out.write(this.buf, 0, this.pos);
+		this.pos = 0;
+	}
+}
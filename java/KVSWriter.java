@@ -0,0 +1,133 @@
+package slite.lib.java;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A push writer for KVS, the counterpart of KVSReader. Pairs are encoded
+ * straight to the stream as they are written, so no KVS structure has to be
+ * built first. The output is exactly what toStream gives for a KVS holding the
+ * same pairs.
+ * <p>
+ * Write the elements of a list with "" as their key, so that they get auto
+ * incremented keys like KVS.add() gives them.
+ * </p>
+ */
+public class KVSWriter
+{
+	private final KVSEncoder encoder;
+	private final boolean pretty;
+	private int depth = 0;
+
+	/**
+	 * Write compact KVS to the stream
+	 * @param out
+	 */
+	public KVSWriter(OutputStream out)
+	{
+		this(out, false);
+	}
+
+	/**
+	 * @param out
+	 * @param pretty If true the output is formatted like KVS.toString(true, null)
+	 */
+	public KVSWriter(OutputStream out, boolean pretty)
+	{
+		this.encoder = new KVSEncoder(out);
+		this.pretty = pretty;
+	}
+
+	/**
+	 * Start a sub-structure. The pairs written until endStructure() go into it.
+	 * @param key
+	 * @return This writer. For chaining purposes.
+	 * @throws IOException
+	 */
+	public KVSWriter startStructure(String key) throws IOException
+	{
+		this.encoder.writeStructureStart(key, this.indent());
+		this.depth++;
+		return this;
+	}
+
+	/**
+	 * End the sub-structure last started
+	 * @return This writer. For chaining purposes.
+	 * @throws IOException
+	 */
+	public KVSWriter endStructure() throws IOException
+	{
+		if(this.depth==0) throw new IllegalStateException("There is no structure to end");
+		this.depth--;
+		this.encoder.writeEnd("", this.indent());
+		return this;
+	}
+
+	public KVSWriter value(String key, String value) throws IOException
+	{
+		this.encoder.writePair(key, value, this.indent());
+		return this;
+	}
+
+	public KVSWriter value(String key, long value) throws IOException
+	{
+		this.encoder.writePair(key, value, this.indent());
+		return this;
+	}
+
+	/**
+	 * Written like KVS.setDouble does
+	 */
+	public KVSWriter value(String key, double value) throws IOException
+	{
+		this.encoder.writePair(key, new KVSNumber(value), this.indent());
+		return this;
+	}
+
+	public KVSWriter value(String key, boolean value) throws IOException
+	{
+		this.encoder.writePair(key, value ? "true" : "false", this.indent());
+		return this;
+	}
+
+	/**
+	 * Written as Base64 like KVS.setBytes(byte[], String...) does
+	 */
+	public KVSWriter value(String key, byte[] value) throws IOException
+	{
+		this.encoder.writePair(key, new KVSBinary(value), this.indent());
+		return this;
+	}
+
+	/**
+	 * Write a whole KVS as a sub-structure
+	 */
+	public KVSWriter value(String key, KVS value) throws IOException
+	{
+		this.encoder.writePair(key, value, this.indent());
+		return this;
+	}
+
+	/**
+	 * @return The number of structures started and not ended yet
+	 */
+	public int getDepth()
+	{
+		return this.depth;
+	}
+
+	/**
+	 * Writes whatever is buffered and flushes the stream
+	 * @throws IOException
+	 */
+	public void flush() throws IOException
+	{
+		this.encoder.flush();
+	}
+
+	private int indent()
+	{
+		return this.pretty ? this.depth : -1;
+	}
+}
@@ -0,0 +1,459 @@
+package slite.lib.java;
+
+import java.io.OutputStream;
+import java.util.Map.Entry;
+
+/**
+ * An immutable KVS where every change returns a new version and leaves the old
+ * one as it was, for example for overlays on shared configuration that are
+ * tried out and then kept or thrown away.
+ * <p>
+ * Versions share everything they have in common. A change copies only the
+ * structures on its key path, and each of those in O(log n) of its size, since
+ * every structure is held in a KVSPersistentMap. So set, remove and add cost
+ * O(path length) no matter how big the document is, and a merge costs as much
+ * as the KVS being merged in. A snapshot is simply a reference to a version, and
+ * a version can be read by any number of threads at the same time.
+ * </p>
+ * Insertion order is kept exactly like it is in a KVS, so a version encodes to
+ * the same text as a KVS that had the same changes made to it.
+ */
+public final class PersistentKVS
+{
+	private static final int SET = 0;
+	private static final int SET_DEFAULT = 1;
+	private static final int REMOVE = 2;
+
+	private final KVS root;
+
+	/**
+	 * Construct an empty structure
+	 */
+	public PersistentKVS()
+	{
+		this.root = new KVS(KVSPersistentMap.EMPTY, 0);
+	}
+
+	/**
+	 * Construct a structure holding a copy of the given KVS, which costs O(n) once.
+	 * Changes made to the given KVS afterwards are not seen by this one. A KVS
+	 * taken from another PersistentKVS is shared instead of copied.
+	 * @param kvs
+	 */
+	public PersistentKVS(KVS kvs)
+	{
+		this.root = persist(kvs);
+	}
+
+	/**
+	 * Construct a structure and fill it with the decoded data contained in text
+	 * @param text
+	 */
+	public PersistentKVS(String text)
+	{
+		this(new KVS(text));
+	}
+
+	/**
+	 * The same as KVS.get(String... keys)
+	 * @param keys The key path
+	 * @return A string version of the value that the key path is referencing.
+	 */
+	public String get(String... keys)
+	{
+		return this.root.get(keys);
+	}
+
+	/**
+	 * The same as KVS.get(KVSPath path)
+	 * @param path The key path
+	 * @return A string version of the value that the key path is referencing.
+	 */
+	public String get(KVSPath path)
+	{
+		return this.root.get(path);
+	}
+
+	/**
+	 * The same as KVS.getString(String defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public String getString(String defaultValue, String... keys)
+	{
+		return this.root.getString(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getLong(long defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public long getLong(long defaultValue, String... keys)
+	{
+		return this.root.getLong(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getLong(long defaultValue, KVSPath path)
+	 * @param defaultValue
+	 * @param path
+	 * @return
+	 */
+	public long getLong(long defaultValue, KVSPath path)
+	{
+		return this.root.getLong(defaultValue, path);
+	}
+
+	/**
+	 * The same as KVS.getInt(int defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public int getInt(int defaultValue, String... keys)
+	{
+		return this.root.getInt(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getInt(int defaultValue, KVSPath path)
+	 * @param defaultValue
+	 * @param path
+	 * @return
+	 */
+	public int getInt(int defaultValue, KVSPath path)
+	{
+		return this.root.getInt(defaultValue, path);
+	}
+
+	/**
+	 * The same as KVS.getDouble(double defaultValue, String... keys)
+	 * @param defaultValue
+	 * @param keys
+	 * @return
+	 */
+	public double getDouble(double defaultValue, String... keys)
+	{
+		return this.root.getDouble(defaultValue, keys);
+	}
+
+	/**
+	 * The same as KVS.getDouble(double defaultValue, KVSPath path)
+	 * @param defaultValue
+	 * @param path
+	 * @return
+	 */
+	public double getDouble(double defaultValue, KVSPath path)
+	{
+		return this.root.getDouble(defaultValue, path);
+	}
+
+	/**
+	 * The same as KVS.getNative(String... keyPath). A structure is returned as
+	 * it is held in this version, without copying it. It can be read like any
+	 * other KVS, but changing it throws an UnsupportedOperationException.
+	 * @param keyPath
+	 * @return Object that can be NULL or a String or a KVS
+	 */
+	public Object getNative(String... keyPath)
+	{
+		return this.root.getNative(keyPath);
+	}
+
+	/**
+	 * The same as getNative(String... keyPath)
+	 * @param path
+	 * @return Object that can be NULL or a String or a KVS
+	 */
+	public Object getNative(KVSPath path)
+	{
+		return this.root.getNative(path);
+	}
+
+	/**
+	 * The same as KVS.exists(String... keyPath)
+	 * @param keyPath
+	 * @return
+	 */
+	public boolean exists(String... keyPath)
+	{
+		return this.root.exists(keyPath);
+	}
+
+	/**
+	 * The same as KVS.exists(KVSPath path)
+	 * @param path
+	 * @return
+	 */
+	public boolean exists(KVSPath path)
+	{
+		return this.root.exists(path);
+	}
+
+	/**
+	 * @return The number of entries on the first structure level
+	 */
+	public int size()
+	{
+		return this.root.size();
+	}
+
+	/**
+	 * @return true if there are no entries
+	 */
+	public boolean isEmpty()
+	{
+		return this.root.isEmpty();
+	}
+
+	/**
+	 * @return The keys of the first structure level
+	 */
+	public String[] keys()
+	{
+		return this.root.keys();
+	}
+
+	/**
+	 * This version as a KVS, without copying it. It can be read and encoded like
+	 * any other KVS, but changing it throws an UnsupportedOperationException.
+	 * @return
+	 */
+	public KVS asKVS()
+	{
+		return this.root;
+	}
+
+	/**
+	 * Copies this version into an ordinary KVS that can be changed freely.
+	 * @return
+	 */
+	public KVS toKVS()
+	{
+		return this.root.copy(true);
+	}
+
+	/**
+	 * Set a value referenced by the key path, the same as KVS.set(Object value, String... keys).
+	 * A KVS value is copied, unless it was taken from a PersistentKVS.
+	 * @param value
+	 * @param keys The key path
+	 * @return The new version, or this one if nothing changed
+	 */
+	public PersistentKVS set(Object value, String... keys)
+	{
+		return this.update(SET, value, keys);
+	}
+
+	/**
+	 * The same as set(Object value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The new version, or this one if nothing changed
+	 */
+	public PersistentKVS set(Object value, KVSPath path)
+	{
+		return this.update(SET, value, path.keys);
+	}
+
+	/**
+	 * The same as set(Object value, String... keys), but only if the key path
+	 * does not exist yet.
+	 * @param value
+	 * @param keys The key path
+	 * @return The new version, or this one if nothing changed
+	 */
+	public PersistentKVS setDefault(Object value, String... keys)
+	{
+		return this.update(SET_DEFAULT, value, keys);
+	}
+
+	/**
+	 * The same as setDefault(Object value, String... keys)
+	 * @param value
+	 * @param path The key path
+	 * @return The new version, or this one if nothing changed
+	 */
+	public PersistentKVS setDefault(Object value, KVSPath path)
+	{
+		return this.update(SET_DEFAULT, value, path.keys);
+	}
+
+	/**
+	 * Remove a key-value pair referenced by the key path
+	 * @param keys The key path
+	 * @return The new version, or this one if the key path doesn't exist
+	 */
+	public PersistentKVS remove(String... keys)
+	{
+		return this.update(REMOVE, null, keys);
+	}
+
+	/**
+	 * The same as remove(String... keys)
+	 * @param path The key path
+	 * @return The new version, or this one if the key path doesn't exist
+	 */
+	public PersistentKVS remove(KVSPath path)
+	{
+		return this.update(REMOVE, null, path.keys);
+	}
+
+	/**
+	 * Add a value using an auto incremented key, the same as KVS.add(Object value)
+	 * @param value
+	 * @return The new version
+	 */
+	public PersistentKVS add(Object value)
+	{
+		KVSPersistentMap map = (KVSPersistentMap) this.root.map();
+		return new PersistentKVS(new KVS(map.with(Integer.toString(this.root.autoKey), persist(value)), this.root.autoKey + 1));
+	}
+
+	/**
+	 * Merges the given KVS into this version, the same way KVS.merge(KVS kvs)
+	 * does. Only the structures that the merge reaches are copied.
+	 * @param kvs
+	 * @return The new version
+	 */
+	public PersistentKVS merge(KVS kvs)
+	{
+		KVS next = merge(this.root, kvs);
+		return next==this.root ? this : new PersistentKVS(next);
+	}
+
+	/**
+	 * The same as merge(KVS kvs). The structures of the given version that are
+	 * new to this one are shared instead of copied.
+	 * @param kvs
+	 * @return The new version
+	 */
+	public PersistentKVS merge(PersistentKVS kvs)
+	{
+		return this.merge(kvs.root);
+	}
+
+	@Override
+	public String toString()
+	{
+		return this.root.toString();
+	}
+
+	/**
+	 * The same as KVS.toString(boolean pretty, String wrapKey)
+	 * @param pretty
+	 * @param wrapKey
+	 * @return
+	 */
+	public String toString(boolean pretty, String wrapKey)
+	{
+		return this.root.toString(pretty, wrapKey);
+	}
+
+	/**
+	 * The same as KVS.toStream(OutputStream out)
+	 * @param out
+	 * @throws Exception
+	 */
+	public void toStream(OutputStream out) throws Exception
+	{
+		this.root.toStream(out);
+	}
+
+	/**
+	 * The same as KVS.toStream(OutputStream out, boolean pretty, String wrapKey)
+	 * @param out
+	 * @param pretty
+	 * @param wrapKey
+	 * @throws Exception
+	 */
+	public void toStream(OutputStream out, boolean pretty, String wrapKey) throws Exception
+	{
+		this.root.toStream(out, pretty, wrapKey);
+	}
+
+	private PersistentKVS update(int operation, Object value, String... keys)
+	{
+		if(keys.length==0) return this;
+		KVS next = update(this.root, 0, operation, persist(value), keys);
+		return next==this.root ? this : new PersistentKVS(next);
+	}
+
+	/**
+	 * Applies the operation below the node without changing it
+	 * @return A new node with the change, or the node itself if nothing changes
+	 */
+	private static KVS update(KVS node, int index, int operation, Object value, String[] keys)
+	{
+		KVSPersistentMap map = (KVSPersistentMap) node.map();
+		String key = keys[index];
+		Object next;
+
+		if(index<keys.length-1) // use this up until the second last key
+		{
+			Object current = map.get(key);
+			if(current instanceof KVS)
+				next = update((KVS) current, index + 1, operation, value, keys);
+			else if(operation==REMOVE)
+				return node;
+			else
+				next = update(new KVS(KVSPersistentMap.EMPTY, 0), index + 1, operation, value, keys);
+			if(next==current) return node;
+			return new KVS(map.with(key, next), node.autoKey);
+		}
+
+		if(operation==REMOVE)
+		{
+			KVSPersistentMap without = map.without(key);
+			return without==map ? node : new KVS(without, node.autoKey);
+		}
+		if(operation==SET_DEFAULT && map.containsKey(key)) return node;
+
+		KVSPersistentMap with = map.with(key, value);
+		return with==map ? node : new KVS(with, node.autoKey);
+	}
+
+	private static KVS merge(KVS node, KVS kvs)
+	{
+		KVSPersistentMap map = (KVSPersistentMap) node.map();
+		Object currentValue;
+		Object value;
+		for(Entry<String, Object> entry : kvs.entries())
+		{
+			currentValue = map.get(entry.getKey());
+			value = entry.getValue();
+			if(value instanceof KVS && currentValue instanceof KVS)
+				map = map.with(entry.getKey(), merge((KVS) currentValue, (KVS) value));
+			else
+				map = map.with(entry.getKey(), persist(value));
+		}
+		return map==node.map() ? node : new KVS(map, node.autoKey);
+	}
+
+	/**
+	 * @return The value, with a KVS turned into one held in KVSPersistentMaps
+	 */
+	private static Object persist(Object value)
+	{
+		return value instanceof KVS ? persist((KVS) value) : value;
+	}
+
+	private static KVS persist(KVS kvs)
+	{
+		if(kvs.map() instanceof KVSPersistentMap) return kvs; // already immutable, so it can be shared
+
+		int size = kvs.size();
+		String[] keys = new String[size];
+		Object[] values = new Object[size];
+		int i = 0;
+		for(Entry<String, Object> entry : kvs.entries())
+		{
+			keys[i] = entry.getKey();
+			values[i++] = persist(entry.getValue());
+		}
+		return new KVS(KVSPersistentMap.of(keys, values, size), kvs.autoKey);
+	}
+}
@@ -0,0 +1,108 @@
+package slite.lib.java.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import slite.lib.java.KVS;
+import slite.lib.java.KVSPath;
+
+/**
+ * Reading and writing deep key paths, and merging one document into another
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AccessBenchmark
+{
+	@Param({"2", "8", "32"})
+	public int depth;
+
+	private KVS kvs;
+	private KVS overlay;
+	private String[] keys;
+	private KVSPath path;
+	private String[] missingKeys;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		this.keys = new String[this.depth];
+		for(int i=0;i<this.depth-1;i++) this.keys[i] = "level" + i;
+		this.keys[this.depth-1] = "value";
+		this.path = new KVSPath(this.keys);
+		this.missingKeys = this.keys.clone();
+		this.missingKeys[this.depth-1] = "missing";
+
+		this.kvs = CorpusGenerator.generate(CorpusGenerator.Shape.WIDE, 64 * 1024, CorpusGenerator.SEED);
+		this.kvs.set("1600", this.keys);
+
+		// a few hundred changes spread over the document
+		this.overlay = CorpusGenerator.generate(CorpusGenerator.Shape.WIDE, 4 * 1024, CorpusGenerator.SEED + 1);
+		this.overlay.set("2000", this.keys);
+	}
+
+	@Benchmark
+	public String get()
+	{
+		return this.kvs.get(this.keys);
+	}
+
+	@Benchmark
+	public String getPath()
+	{
+		return this.kvs.get(this.path);
+	}
+
+	@Benchmark
+	public int getInt()
+	{
+		return this.kvs.getInt(this.keys);
+	}
+
+	@Benchmark
+	public int getIntPath()
+	{
+		return this.kvs.getInt(this.path);
+	}
+
+	@Benchmark
+	public boolean existsMissing()
+	{
+		return this.kvs.exists(this.missingKeys);
+	}
+
+	@Benchmark
+	public KVS set()
+	{
+		return this.kvs.set("1600", this.keys);
+	}
+
+	@Benchmark
+	public KVS setPath()
+	{
+		return this.kvs.set("1600", this.path);
+	}
+
+	@Benchmark
+	public KVS merge()
+	{
+		// merging the same overlay again changes nothing, so every call does the same work
+		this.kvs.merge(this.overlay);
+		return this.kvs;
+	}
+}
@@ -0,0 +1,188 @@
+package slite.lib.java.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import slite.lib.java.KVS;
+
+/**
+ * Generates synthetic KVS documents of a given shape and roughly a given size.
+ * The same shape, size and seed always give the same document, so benchmark
+ * results can be compared between runs and between branches.
+ * <p>
+ * Run it on its own to write every shape to files:
+ * <pre>
+ * java -cp benchmarks.jar slite.lib.java.benchmark.CorpusGenerator [directory] [bytes]
+ * </pre>
+ * </p>
+ */
+public final class CorpusGenerator
+{
+	public static final long SEED = 20240101L;
+
+	public enum Shape
+	{
+		/** Records with many named keys and short values */
+		WIDE,
+		/** Records that are structures nested 32 deep */
+		DEEP,
+		/** Keyless lists of small records, like car[[...][...]] */
+		ARRAY,
+		/** Values full of ; that all have to be escaped */
+		ESCAPE,
+		/** A few keys with values of 64 KB each */
+		LARGE_VALUES
+	}
+
+	private static final int WIDE_KEYS = 64;
+	private static final int DEEP_LEVELS = 32;
+	private static final int ARRAY_LENGTH = 100;
+	private static final int LARGE_VALUE_SIZE = 64 * 1024;
+
+	private static final String[] WORDS = {"Peter", "Woods", "BMW", "X3", "diesel", "petrol", "Golf", "red", "blue", "2004", "1600", "true", "false"};
+
+	private CorpusGenerator()
+	{
+
+	}
+
+	/**
+	 * Generate a document of the shape with a compact encoding of at least targetBytes
+	 * @param shape
+	 * @param targetBytes
+	 * @param seed
+	 * @return
+	 */
+	public static KVS generate(Shape shape, int targetBytes, long seed)
+	{
+		Random random = new Random(seed);
+		KVS kvs = new KVS();
+		int size = 0;
+		int record = 0;
+		while(size<targetBytes)
+		{
+			String key = "r" + record++;
+			switch(shape)
+			{
+				case WIDE:
+					size += wide(kvs.getKvs(key), random) + key.length() + 2;
+					break;
+				case DEEP:
+					size += deep(kvs.getKvs(key), random) + key.length() + 2;
+					break;
+				case ARRAY:
+					size += array(kvs.getKvs(key), random) + key.length() + 2;
+					break;
+				case ESCAPE:
+					size += escape(kvs.getKvs(key), random) + key.length() + 2;
+					break;
+				case LARGE_VALUES:
+					String value = text(random, LARGE_VALUE_SIZE);
+					kvs.set(value, key);
+					size += value.length() + key.length() + 2;
+					break;
+			}
+		}
+		return kvs;
+	}
+
+	/**
+	 * The same as generate(shape, targetBytes, seed), encoded
+	 * @param shape
+	 * @param targetBytes
+	 * @param pretty
+	 * @param seed
+	 * @return
+	 */
+	public static String generateText(Shape shape, int targetBytes, boolean pretty, long seed)
+	{
+		return generate(shape, targetBytes, seed).toString(pretty, null);
+	}
+
+	private static int wide(KVS kvs, Random random)
+	{
+		int size = 0;
+		for(int i=0;i<WIDE_KEYS;i++)
+			size += put(kvs, "field" + i, WORDS[random.nextInt(WORDS.length)]);
+		return size;
+	}
+
+	private static int deep(KVS kvs, Random random)
+	{
+		int size = 0;
+		for(int level=0;level<DEEP_LEVELS;level++)
+		{
+			size += put(kvs, "name", WORDS[random.nextInt(WORDS.length)]);
+			size += put(kvs, "level", Integer.toString(level));
+			kvs = kvs.getKvs("child");
+			size += 7;
+		}
+		return size;
+	}
+
+	private static int array(KVS kvs, Random random)
+	{
+		int size = 0;
+		KVS item;
+		for(int i=0;i<ARRAY_LENGTH;i++)
+		{
+			item = new KVS();
+			size += put(item, "make", WORDS[random.nextInt(WORDS.length)]);
+			size += put(item, "model", WORDS[random.nextInt(WORDS.length)]);
+			size += put(item, "year", Integer.toString(1980 + random.nextInt(45)));
+			kvs.add(item);
+			size += 2;
+		}
+		return size;
+	}
+
+	private static int escape(KVS kvs, Random random)
+	{
+		int size = 0;
+		StringBuilder value = new StringBuilder();
+		for(int i=0;i<16;i++)
+		{
+			value.setLength(0);
+			for(int j=0;j<8;j++) value.append(WORDS[random.nextInt(WORDS.length)]).append(';');
+			size += put(kvs, "statement" + i, value.toString()) + 8;
+		}
+		return size;
+	}
+
+	private static int put(KVS kvs, String key, String value)
+	{
+		kvs.set(value, key);
+		return key.length() + value.length() + 2;
+	}
+
+	private static String text(Random random, int length)
+	{
+		StringBuilder text = new StringBuilder(length);
+		while(text.length()<length) text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		text.setLength(length);
+		return text.toString();
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		File directory = new File(args.length>0 ? args[0] : "corpus");
+		int targetBytes = args.length>1 ? Integer.parseInt(args[1]) : 1 << 20;
+		directory.mkdirs();
+
+		for(Shape shape : Shape.values())
+		{
+			KVS kvs = generate(shape, targetBytes, SEED);
+			for(boolean pretty : new boolean[]{false, true})
+			{
+				File file = new File(directory, shape.name().toLowerCase() + (pretty ? "-pretty" : "-compact") + ".kvs");
+				try(OutputStream out = new FileOutputStream(file))
+				{
+					kvs.toStream(out, pretty, null);
+				}
+				System.out.println(file + " " + file.length() + " bytes");
+			}
+		}
+	}
+}
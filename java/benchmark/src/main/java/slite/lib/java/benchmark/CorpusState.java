@@ -0,0 +1,52 @@
+package slite.lib.java.benchmark;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import slite.lib.java.KVS;
+
+/**
+ * A generated document in every form the benchmarks read it from: decoded, as
+ * text, as UTF-8 bytes and as a file.
+ */
+@State(Scope.Benchmark)
+public class CorpusState
+{
+	@Param({"WIDE", "DEEP", "ARRAY", "ESCAPE", "LARGE_VALUES"})
+	public CorpusGenerator.Shape shape;
+
+	@Param({"false", "true"})
+	public boolean pretty;
+
+	@Param({"1048576"})
+	public int size;
+
+	public KVS kvs;
+	public String text;
+	public byte[] bytes;
+	public File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		this.kvs = CorpusGenerator.generate(this.shape, this.size, CorpusGenerator.SEED);
+		this.text = this.kvs.toString(this.pretty, null);
+		this.bytes = this.text.getBytes(StandardCharsets.UTF_8);
+		this.file = File.createTempFile("kvs-benchmark-", ".kvs");
+		Files.write(this.file.toPath(), this.bytes);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		this.file.delete();
+	}
+}
@@ -0,0 +1,55 @@
+package slite.lib.java.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import slite.lib.java.KVS;
+
+/**
+ * Decoding a whole document from each kind of source
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark
+{
+	@Benchmark
+	public KVS fromString(CorpusState corpus)
+	{
+		return new KVS(corpus.text);
+	}
+
+	@Benchmark
+	public KVS fromStream(CorpusState corpus) throws Exception
+	{
+		KVS kvs = new KVS();
+		kvs.fromStream(new ByteArrayInputStream(corpus.bytes), -1);
+		return kvs;
+	}
+
+	@Benchmark
+	public KVS fromFile(CorpusState corpus) throws Exception
+	{
+		KVS kvs = new KVS();
+		kvs.fromFile(corpus.file);
+		return kvs;
+	}
+
+	@Benchmark
+	public KVS fromFileMapped(CorpusState corpus) throws Exception
+	{
+		KVS kvs = new KVS();
+		kvs.fromFile(corpus.file, true);
+		return kvs;
+	}
+}
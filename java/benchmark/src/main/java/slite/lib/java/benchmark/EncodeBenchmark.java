@@ -0,0 +1,58 @@
+package slite.lib.java.benchmark;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a whole document. The corpus' pretty parameter only changes the
+ * text the document was generated from, so every benchmark here states the
+ * format it encodes to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark
+{
+	// Writes go nowhere so that only the encoding is measured
+	private static final OutputStream NULL = OutputStream.nullOutputStream();
+
+	@Benchmark
+	public String toStringCompact(CorpusState corpus)
+	{
+		return corpus.kvs.toString(false, null);
+	}
+
+	@Benchmark
+	public String toStringPretty(CorpusState corpus)
+	{
+		return corpus.kvs.toString(true, "root");
+	}
+
+	@Benchmark
+	public void toStreamCompact(CorpusState corpus) throws Exception
+	{
+		corpus.kvs.toStream(NULL, false, null);
+	}
+
+	@Benchmark
+	public void toStreamPretty(CorpusState corpus) throws Exception
+	{
+		corpus.kvs.toStream(NULL, true, "root");
+	}
+
+	@Benchmark
+	public void toStreamParallelCompact(CorpusState corpus) throws Exception
+	{
+		corpus.kvs.toStreamParallel(NULL, false, null);
+	}
+}
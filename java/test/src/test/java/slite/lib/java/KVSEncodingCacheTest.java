@@ -0,0 +1,207 @@
+package slite.lib.java;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a KVS with cacheEncoding() turned on always encodes exactly like
+ * a copy of it without the cache, however it is changed.
+ */
+public class KVSEncodingCacheTest
+{
+	private static final int TREES = 5000;
+	private static final int STEPS = 40;
+
+	@Test
+	public void turningTheCacheOffBelowTheRootKeepsTheRootUpToDate()
+	{
+		KVS root = new KVS("a[v=1;]b=2;").cacheEncoding(true);
+		root.toString();
+		KVS a = (KVS) root.getNative("a");
+		a.cacheEncoding(false);
+		a.set("2", "w");
+		assertEquals("a[v=1;w=2;]b=2;", root.toString());
+	}
+
+	@Test
+	public void randomChangesEncodeLikeAnUncachedCopy() throws Exception
+	{
+		for(int tree=0;tree<TREES;tree++)
+		{
+			Changes changes = new Changes(new Random(tree));
+			KVS root = changes.tree(0).cacheEncoding(true);
+			for(int step=0;step<STEPS;step++)
+			{
+				changes.apply(root);
+				String expected = root.copy(true).toString();
+				String message = "tree " + tree + " step " + step;
+				assertEquals(expected, root.toString(), message);
+				assertEquals("[" + expected + "]", root.toString(false, ""), message);
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				root.toStream(out, false, "w");
+				assertEquals("w[" + expected + "]", out.toString(StandardCharsets.UTF_8), message);
+			}
+			root.cacheEncoding(false);
+			assertEquals(root.copy(true).toString(), root.toString(), "tree " + tree);
+		}
+	}
+
+	/**
+	 * Makes random trees and random changes to them, through every way of changing a KVS that the cache tracks
+	 */
+	private static final class Changes
+	{
+		private final Random random;
+		private final List<KVS> shared = new ArrayList<>(); // structures that have also been put somewhere else
+		private final List<StringBuilder> mutable = new ArrayList<>(); // values that change without the KVS knowing
+
+		Changes(Random random)
+		{
+			this.random = random;
+		}
+
+		KVS tree(int depth)
+		{
+			KVS kvs = new KVS();
+			int size = this.random.nextInt(6);
+			boolean list = this.random.nextBoolean();
+			for(int i=0;i<size;i++)
+			{
+				Object value = this.value(depth);
+				if(list) kvs.add(value);
+				else kvs.set(value, this.key());
+			}
+			return kvs;
+		}
+
+		void apply(KVS root)
+		{
+			String[] path = this.path(root);
+			try
+			{
+				switch(this.random.nextInt(18))
+				{
+					case 0: case 1: root.set(this.value(path.length), path); break;
+					case 2: root.remove(path); break;
+					case 3: this.structure(root, path).add(this.value(2)); break;
+					case 4: root.getKvs(path).merge(this.tree(2)); break;
+					case 5: root.setDefault(this.text(), path); break;
+					case 6: root.setLong(this.random.nextLong(), path); break;
+					case 7: root.setBytes(new byte[this.random.nextInt(300)], path); break;
+					case 8: // the same structure in two places
+						KVS kvs = root.getKvs(path);
+						this.shared.add(kvs);
+						root.set(kvs, this.key());
+						break;
+					case 9: if(!this.shared.isEmpty()) this.shared.get(this.random.nextInt(this.shared.size())).set(this.text(), this.key()); break;
+					case 10: if(!this.mutable.isEmpty()) this.mutable.get(this.random.nextInt(this.mutable.size())).append('x'); break;
+					case 11: root.getKvs(path).fromString("x=1;y[z=2;]"); break;
+					case 12: // a patch, which also reorders keys
+						KVS changed = root.copy(true);
+						changed.set(this.text(), this.path(changed));
+						root.apply(KVS.diff(root, changed));
+						break;
+					case 13: // a frozen structure can be shared
+						KVS frozen = this.tree(1).freeze();
+						root.set(frozen, path);
+						root.set(frozen, this.key());
+						break;
+					case 14: this.structure(root, path).cacheEncoding(this.random.nextBoolean()); break;
+					case 15: root.toString(); break; // write it twice in a row
+					case 16: // through the views
+						for(Entry<String, Object> entry : this.structure(root, path).entries())
+						{
+							entry.setValue(this.text());
+							break;
+						}
+						break;
+					case 17:
+						Iterator<Object> values = this.structure(root, path).values().iterator();
+						if(values.hasNext())
+						{
+							values.next();
+							values.remove();
+						}
+						break;
+				}
+			}
+			catch(UnsupportedOperationException e)
+			{
+				// changing something inside a frozen structure
+			}
+		}
+
+		private String key()
+		{
+			return (this.random.nextInt(5)==0 ? "k;" : "k") + this.random.nextInt(6);
+		}
+
+		// sometimes long enough for the structures holding it to keep their bytes
+		private String text()
+		{
+			int length = this.random.nextInt(4)==0 ? 100 + this.random.nextInt(200) : this.random.nextInt(8);
+			StringBuilder text = new StringBuilder();
+			for(int i=0;i<length;i++) text.append("ab;é€".charAt(this.random.nextInt(5)));
+			return text.toString();
+		}
+
+		private Object value(int depth)
+		{
+			int kind = this.random.nextInt(10);
+			if(depth<4 && kind<4) return this.tree(depth + 1);
+			if(kind==4) return Integer.valueOf(this.random.nextInt());
+			if(kind==5 && this.random.nextInt(4)==0)
+			{
+				StringBuilder value = new StringBuilder(this.text());
+				this.mutable.add(value);
+				return value;
+			}
+			return this.text();
+		}
+
+		// a path to an existing value, or to a new key in an existing structure
+		private String[] path(KVS root)
+		{
+			List<String> path = new ArrayList<>();
+			KVS kvs = root;
+			while(true)
+			{
+				String[] keys = kvs.keys();
+				if(keys.length==0 || this.random.nextInt(3)==0)
+				{
+					path.add(keys.length>0 && this.random.nextBoolean() ? keys[this.random.nextInt(keys.length)] : this.key());
+					break;
+				}
+				String key = keys[this.random.nextInt(keys.length)];
+				path.add(key);
+				Object value = kvs.getNative(key);
+				if(value==null || !value.getClass().equals(KVS.class)) break;
+				kvs = (KVS) value;
+			}
+			return path.toArray(new String[0]);
+		}
+
+		// the structure holding the last key of the path
+		private KVS structure(KVS root, String[] path)
+		{
+			KVS kvs = root;
+			for(int i=0;i<path.length - 1;i++)
+			{
+				Object value = kvs.getNative(path[i]);
+				if(value==null || !value.getClass().equals(KVS.class)) break;
+				kvs = (KVS) value;
+			}
+			return kvs;
+		}
+	}
+}